@@ -0,0 +1,125 @@
+package com.github.httpproxy;
+
+import com.github.httpproxy.proxy.ProxyServlet;
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.startup.Tomcat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * 轻量的独立启动器：直接在嵌入式Tomcat上注册ProxyServlet，
+ * 不启动Spring容器，不扫描classpath，不解析web.xml
+ *
+ * 配置从classpath下的application.properties读取，可以用第一个参数指定其他文件，
+ * 系统属性优先。server.port为监听端口，proxy.前缀的属性去掉前缀后作为servlet初始化参数，
+ * 例如 proxy.targetUri=http://localhost:8080/
+ *
+ * 设置 -Dproxy.exitAfterStartup=true 时启动完成后立即退出，用于生成AppCDS归档
+ */
+public class ProxyLauncher {
+
+    private static final Logger log = Logger.getLogger(ProxyLauncher.class.getName());
+
+    private static final String PORT = "server.port";
+    private static final String INIT_PARAM_PREFIX = "proxy.";
+    private static final String EXIT_AFTER_STARTUP = "proxy.exitAfterStartup";
+
+    public static void main(String[] args) throws Exception {
+        long startNanos = System.nanoTime();
+        Properties config = loadConfig(args.length > 0 ? args[0] : null);
+
+        Tomcat tomcat = start(config);
+        int port = tomcat.getConnector().getLocalPort();
+
+        long startupMillis = (System.nanoTime() - startNanos) / 1000000;
+        long uptimeMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        log.info("Proxy started on port " + port + " in " + startupMillis + " ms (JVM uptime " + uptimeMillis
+                + " ms, RSS " + readRssKb() + " kB)");
+
+        if(Boolean.parseBoolean(config.getProperty(EXIT_AFTER_STARTUP))) {
+            tomcat.stop();
+            tomcat.destroy();
+            return;
+        }
+        tomcat.getServer().await();
+    }
+
+    /**
+     * 创建并启动嵌入式Tomcat
+     * @param config 配置
+     * @return 已启动的Tomcat
+     * @throws LifecycleException
+     * @throws IOException
+     */
+    public static Tomcat start(Properties config) throws LifecycleException, IOException {
+        Tomcat tomcat = new Tomcat();
+        tomcat.setBaseDir(Files.createTempDirectory("http-proxy").toString());
+
+        Connector connector = new Connector("HTTP/1.1");
+        connector.setPort(Integer.parseInt(config.getProperty(PORT, "8080")));
+        tomcat.setConnector(connector);
+
+        // 不设置docBase，也不添加ContextConfig，因此不会解析web.xml、不会扫描注解和jar
+        Context context = tomcat.addContext("", null);
+        Wrapper wrapper = Tomcat.addServlet(context, "proxy", new ProxyServlet());
+        for(String name : config.stringPropertyNames()) {
+            if(name.startsWith(INIT_PARAM_PREFIX) && !name.equals(EXIT_AFTER_STARTUP)) {
+                wrapper.addInitParameter(name.substring(INIT_PARAM_PREFIX.length()), config.getProperty(name));
+            }
+        }
+        wrapper.setLoadOnStartup(1);
+        wrapper.setAsyncSupported(true);
+        context.addServletMappingDecoded("/*", "proxy");
+
+        tomcat.start();
+        return tomcat;
+    }
+
+    private static Properties loadConfig(String path) throws IOException {
+        Properties config = new Properties();
+        if(path != null) {
+            try (InputStream in = new FileInputStream(path)) {
+                config.load(in);
+            }
+        } else {
+            try (InputStream in = ProxyLauncher.class.getClassLoader().getResourceAsStream("application.properties")) {
+                if(in != null) {
+                    config.load(in);
+                }
+            }
+        }
+        config.putAll(System.getProperties());
+        return config;
+    }
+
+    // 只在Linux上可用，其他系统返回-1
+    private static long readRssKb() {
+        File status = new File("/proc/self/status");
+        if(!status.isFile()) {
+            return -1;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(status))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if(line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.substring(6).replace("kB", "").trim());
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // 忽略
+        }
+        return -1;
+    }
+}
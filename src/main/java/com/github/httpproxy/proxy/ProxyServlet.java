@@ -1,35 +1,98 @@
 package com.github.httpproxy.proxy;
 
 
+import com.github.httpproxy.proxy.cluster.ClusterNode;
+import com.github.httpproxy.proxy.cluster.ClusterRateLimiter;
+import com.github.httpproxy.proxy.cluster.PeerRangeStore;
+import com.github.httpproxy.proxy.cluster.TcpClusterTransport;
+import com.github.httpproxy.proxy.dns.CachingDnsResolver;
+import com.github.httpproxy.proxy.log.AccessLogRecord;
+import com.github.httpproxy.proxy.log.AsyncAccessLogWriter;
+import com.github.httpproxy.proxy.log.CountingOutputStream;
+import com.github.httpproxy.proxy.log.RollingFileOutput;
+import com.github.httpproxy.proxy.mirror.MirrorRequest;
+import com.github.httpproxy.proxy.mirror.TrafficMirror;
+import com.github.httpproxy.proxy.range.ByteRange;
+import com.github.httpproxy.proxy.range.ObjectMetadata;
+import com.github.httpproxy.proxy.range.RangeObjectStore;
+import com.github.httpproxy.proxy.range.RangeResponse;
+import com.github.httpproxy.proxy.range.SegmentCache;
+import com.github.httpproxy.proxy.range.SegmentSource;
+import com.github.httpproxy.proxy.rewrite.AhoCorasickMatcher;
+import com.github.httpproxy.proxy.rewrite.RewritingOutputStream;
+import com.github.httpproxy.proxy.stream.EventStreamCopier;
+import com.github.httpproxy.proxy.stream.StreamingMode;
+import com.github.httpproxy.proxy.trace.BatchSpanProcessor;
+import com.github.httpproxy.proxy.trace.FileSpanExporter;
+import com.github.httpproxy.proxy.trace.Span;
+import com.github.httpproxy.proxy.trace.SpanExporter;
+import com.github.httpproxy.proxy.trace.TimingConnectionManager;
+import com.github.httpproxy.proxy.trace.TimingHttpRequestExecutor;
+import com.github.httpproxy.proxy.trace.Tracer;
 import org.apache.http.*;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.CookieSpecs;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.AbortableHttpRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.DateUtils;
 import org.apache.http.client.utils.URIUtils;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
 import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicHttpEntityEnclosingRequest;
 import org.apache.http.message.BasicHttpRequest;
 import org.apache.http.message.HeaderGroup;
 import org.apache.http.util.EntityUtils;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpCookie;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.Collections;
+import java.util.Date;
 import java.util.Enumeration;
 import java.util.Formatter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * HTTP反向代理/网关servlet。可扩展以进行定制
@@ -91,6 +154,21 @@ public class ProxyServlet extends HttpServlet {
      */
     public static final String P_USESYSTEMPROPERTIES = "useSystemProperties";
 
+    /**
+     * 缓存后端主机的DNS解析结果并在后台刷新
+     */
+    public static final String P_DNS_CACHE = "dns.cache";
+
+    /**
+     * DNS缓存有效期 (millis)
+     */
+    public static final String P_DNS_TTL = "dns.ttl";
+
+    /**
+     * DNS刷新失败时继续使用旧地址的最长时间 (millis)
+     */
+    public static final String P_DNS_MAXSTALE = "dns.maxStale";
+
     /**
      * 在servlet中启用压缩处理， 如果为false，则压缩流不加修改地通过
      */
@@ -101,12 +179,171 @@ public class ProxyServlet extends HttpServlet {
      */
     public static final String P_TARGET_URI = "targetUri";
 
+    /**
+     * 结构化访问日志文件路径，不设置则不记录访问日志
+     */
+    public static final String P_ACCESSLOG = "accessLog";
+
+    /**
+     * 访问日志单个文件最大字节数，超过后滚动
+     */
+    public static final String P_ACCESSLOG_MAXBYTES = "accessLog.maxBytes";
+
+    /**
+     * 访问日志按时间滚动的间隔 (millis)
+     */
+    public static final String P_ACCESSLOG_ROLLINTERVAL = "accessLog.rollInterval";
+
+    /**
+     * 访问日志环形缓冲区容量，缓冲区满时丢弃记录
+     */
+    public static final String P_ACCESSLOG_BUFFERSIZE = "accessLog.bufferSize";
+
+    /**
+     * 启用链路追踪：传播traceparent/B3头并记录代理span
+     */
+    public static final String P_TRACE = "trace";
+
+    /**
+     * 上游没有采样决定时的采样率 (0.0 - 1.0)
+     */
+    public static final String P_TRACE_SAMPLERATE = "trace.sampleRate";
+
+    /**
+     * span导出器的类名，需要实现SpanExporter并有无参构造方法
+     */
+    public static final String P_TRACE_EXPORTER = "trace.exporter";
+
+    /**
+     * 未指定导出器时，把span写入该文件。启用链路追踪时两者必须指定一个
+     */
+    public static final String P_TRACE_FILE = "trace.file";
+
+    /**
+     * 影子目标URI，设置后按采样率把请求复制一份发送到该目标，响应被丢弃
+     */
+    public static final String P_MIRROR_TARGET_URI = "mirror.targetUri";
+
+    /**
+     * 镜像请求的比例 (0.0 - 1.0)
+     */
+    public static final String P_MIRROR_SAMPLERATE = "mirror.sampleRate";
+
+    /**
+     * 同时进行的影子请求上限，同时也是影子连接池的大小
+     */
+    public static final String P_MIRROR_MAXCONCURRENCY = "mirror.maxConcurrency";
+
+    /**
+     * 影子请求的连接、读取超时时间 (millis)
+     */
+    public static final String P_MIRROR_TIMEOUT = "mirror.timeout";
+
+    /**
+     * 传递给影子请求的请求体缓冲区大小，影子请求落后超过该值时放弃
+     */
+    public static final String P_MIRROR_BODYBUFFERSIZE = "mirror.bodyBufferSize";
+
+    /**
+     * 按事件边界刷新的流式响应类型，逗号分隔
+     */
+    public static final String P_STREAMING_CONTENTTYPES = "streaming.contentTypes";
+
+    /**
+     * 流式响应合并刷新的窗口 (微秒)，0表示每个事件都立即刷新
+     */
+    public static final String P_STREAMING_COALESCEMICROS = "streaming.coalesceMicros";
+
+    /**
+     * 在容器线程之外复制流式响应的线程数上限，0表示在容器线程中复制
+     */
+    public static final String P_STREAMING_MAXTHREADS = "streaming.maxThreads";
+
+    /**
+     * 范围请求分段缓存的文件，设置后由代理处理Range/If-Range并从缓存返回206
+     */
+    public static final String P_RANGECACHE_FILE = "rangeCache.file";
+
+    /**
+     * 范围请求分段缓存的总大小 (bytes)
+     */
+    public static final String P_RANGECACHE_SIZE = "rangeCache.size";
+
+    /**
+     * 向后端获取数据的分段大小 (bytes)
+     */
+    public static final String P_RANGECACHE_SEGMENTSIZE = "rangeCache.segmentSize";
+
+    /**
+     * 对象元数据的有效期 (millis)，过期后重新向后端确认版本
+     */
+    public static final String P_RANGECACHE_TTL = "rangeCache.ttl";
+
+    /**
+     * 把响应体中指向后端targetUri的绝对URL替换为代理的URL
+     */
+    public static final String P_REWRITEBODY = "rewriteBody";
+
+    /**
+     * 需要替换URL的响应类型，逗号分隔
+     */
+    public static final String P_REWRITEBODY_CONTENTTYPES = "rewriteBody.contentTypes";
+
+    /**
+     * 集群成员的地址(host:port)，逗号分隔，包括本节点。设置后范围缓存按一致性哈希在成员间分片，
+     * 限流计数在成员间汇总。只接受来自这些地址的集群连接
+     */
+    public static final String P_CLUSTER_MEMBERS = "cluster.members";
+
+    /**
+     * 本节点监听集群消息的地址(host:port)，必须是cluster.members中的一个。
+     * 集群消息没有认证和加密，只能绑定在可信的内部网络上
+     */
+    public static final String P_CLUSTER_BIND = "cluster.bind";
+
+    /**
+     * 集群成员之间请求的超时时间(毫秒)
+     */
+    public static final String P_CLUSTER_TIMEOUT = "cluster.timeout";
+
+    /**
+     * 请求某个成员失败后，多久之内不再访问它(毫秒)
+     */
+    public static final String P_CLUSTER_RETRYINTERVAL = "cluster.retryInterval";
+
+    /**
+     * 向其他成员发送限流计数的间隔(毫秒)
+     */
+    public static final String P_CLUSTER_GOSSIPINTERVAL = "cluster.gossipInterval";
+
+    /**
+     * 每个客户端IP在一个窗口内允许的请求数，0表示不限流
+     */
+    public static final String P_RATELIMIT = "rateLimit";
+
+    /**
+     * 限流窗口长度(毫秒)
+     */
+    public static final String P_RATELIMIT_WINDOW = "rateLimit.window";
+
     protected static final String ATTR_TARGET_URI =
             ProxyServlet.class.getSimpleName() + ".targetUri";
 
     protected static final String ATTR_TARGET_HOST =
             ProxyServlet.class.getSimpleName() + ".targetHost";
 
+    protected static final String ATTR_ACCESS_LOG =
+            ProxyServlet.class.getSimpleName() + ".accessLog";
+
+    protected static final String ATTR_SPAN =
+            ProxyServlet.class.getSimpleName() + ".span";
+
+    protected static final String ATTR_MIRROR =
+            ProxyServlet.class.getSimpleName() + ".mirror";
+
+    protected static final String ATTR_REWRITE_BODY =
+            ProxyServlet.class.getSimpleName() + ".rewriteBody";
+
 
     protected boolean doLog = false;
     protected boolean doForwardIP = true;
@@ -122,6 +359,40 @@ public class ProxyServlet extends HttpServlet {
     protected int readTimeout = -1;
     protected int connectionRequestTimeout = -1;
     protected int maxConnections = -1;
+    protected boolean doDnsCache = true;
+    protected long dnsTtl = 30 * 1000;
+    protected long dnsMaxStale = 5 * 60 * 1000;
+    protected String accessLogFile;
+    protected long accessLogMaxBytes = 100L * 1024 * 1024;
+    protected long accessLogRollInterval = 24L * 60 * 60 * 1000;
+    protected int accessLogBufferSize = 8192;
+    protected boolean doTrace = false;
+    protected double traceSampleRate = 1.0;
+    protected String traceExporter;
+    protected String traceFile;
+    protected String mirrorTargetUri;
+    protected double mirrorSampleRate = 1.0;
+    protected int mirrorMaxConcurrency = 16;
+    protected int mirrorTimeout = 5000;
+    protected int mirrorBodyBufferSize = 256 * 1024;
+    protected String streamingContentTypes =
+            "text/event-stream,application/x-ndjson,application/stream+json,application/json-seq";
+    protected long streamingCoalesceMicros = 200;
+    protected int streamingMaxThreads = 200;
+    protected String rangeCacheFile;
+    protected long rangeCacheSize = 256L * 1024 * 1024;
+    protected int rangeCacheSegmentSize = 1024 * 1024;
+    protected long rangeCacheTtl = 60 * 1000;
+    protected boolean doRewriteBody = false;
+    protected String rewriteBodyContentTypes = "text/html,text/css,text/javascript,application/javascript,"
+            + "application/json,application/xml,text/xml";
+    protected String clusterMembers;
+    protected String clusterBind;
+    protected int clusterTimeout = 2000;
+    protected long clusterGossipInterval = 200;
+    protected long clusterRetryInterval = 10000;
+    protected long rateLimit = 0;
+    protected long rateLimitWindow = 1000;
     /**
      * 接下来的3个缓存在这里，应该只在初始化逻辑中引用
      */
@@ -131,6 +402,41 @@ public class ProxyServlet extends HttpServlet {
 
     private HttpClient proxyClient;
 
+    private DnsResolver dnsResolver;
+
+    private AsyncAccessLogWriter accessLogWriter;
+
+    private Tracer tracer;
+
+    private TrafficMirror trafficMirror;
+
+    private Map<String, StreamingMode> streamingModes;
+
+    private ThreadPoolExecutor streamingExecutor;
+
+    private RangeObjectStore rangeStore;
+
+    /**
+     * 后端不支持范围请求或不允许缓存的对象，到期时间之前不再探测
+     */
+    private final Map<String, Long> rangeUncacheable = Collections.synchronizedMap(
+            new LinkedHashMap<String, Long>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > 10000;
+                }
+            });
+
+    private Set<String> rewriteBodyMimeTypes;
+
+    private final Map<String, AhoCorasickMatcher> rewriteMatchers = new ConcurrentHashMap<>();
+
+    private ClusterNode clusterNode;
+
+    private PeerRangeStore peerRangeStore;
+
+    private ClusterRateLimiter rateLimiter;
+
     @Override
     public String getServletInfo() {
         return "A proxy servlet by lxhcaicai";
@@ -202,188 +508,1246 @@ public class ProxyServlet extends HttpServlet {
             this.connectionRequestTimeout = Integer.parseInt(connectionRequestTimeout);
         }
 
-        String maxConnections = getConfigParam(P_MAXCONNECTIONS);
-        if(maxConnections != null) {
-            this.maxConnections = Integer.parseInt(maxConnections);
+        String maxConnections = getConfigParam(P_MAXCONNECTIONS);
+        if(maxConnections != null) {
+            this.maxConnections = Integer.parseInt(maxConnections);
+        }
+
+        String useSystemPropertiesString = getConfigParam(P_USESYSTEMPROPERTIES);
+        if(useSystemPropertiesString != null) {
+            this.useSystemProperties = Boolean.parseBoolean(useSystemPropertiesString);
+        }
+
+        String doDnsCacheString = getConfigParam(P_DNS_CACHE);
+        if(doDnsCacheString != null) {
+            this.doDnsCache = Boolean.parseBoolean(doDnsCacheString);
+        }
+
+        String dnsTtlString = getConfigParam(P_DNS_TTL);
+        if(dnsTtlString != null) {
+            this.dnsTtl = Long.parseLong(dnsTtlString);
+        }
+
+        String dnsMaxStaleString = getConfigParam(P_DNS_MAXSTALE);
+        if(dnsMaxStaleString != null) {
+            this.dnsMaxStale = Long.parseLong(dnsMaxStaleString);
+        }
+
+        String doHandleCompression = getConfigParam(P_HANDLECOMPRESSION);
+        if(doHandleCompression != null) {
+            this.doHandleCompression = Boolean.parseBoolean(doHandleCompression);
+        }
+
+        accessLogFile = getConfigParam(P_ACCESSLOG);
+
+        String accessLogMaxBytesString = getConfigParam(P_ACCESSLOG_MAXBYTES);
+        if(accessLogMaxBytesString != null) {
+            this.accessLogMaxBytes = Long.parseLong(accessLogMaxBytesString);
+        }
+
+        String accessLogRollIntervalString = getConfigParam(P_ACCESSLOG_ROLLINTERVAL);
+        if(accessLogRollIntervalString != null) {
+            this.accessLogRollInterval = Long.parseLong(accessLogRollIntervalString);
+        }
+
+        String accessLogBufferSizeString = getConfigParam(P_ACCESSLOG_BUFFERSIZE);
+        if(accessLogBufferSizeString != null) {
+            this.accessLogBufferSize = Integer.parseInt(accessLogBufferSizeString);
+        }
+
+        String doTraceString = getConfigParam(P_TRACE);
+        if(doTraceString != null) {
+            this.doTrace = Boolean.parseBoolean(doTraceString);
+        }
+
+        String traceSampleRateString = getConfigParam(P_TRACE_SAMPLERATE);
+        if(traceSampleRateString != null) {
+            this.traceSampleRate = Double.parseDouble(traceSampleRateString);
+        }
+
+        traceExporter = getConfigParam(P_TRACE_EXPORTER);
+        traceFile = getConfigParam(P_TRACE_FILE);
+
+        mirrorTargetUri = getConfigParam(P_MIRROR_TARGET_URI);
+
+        String mirrorSampleRateString = getConfigParam(P_MIRROR_SAMPLERATE);
+        if(mirrorSampleRateString != null) {
+            this.mirrorSampleRate = Double.parseDouble(mirrorSampleRateString);
+        }
+
+        String mirrorMaxConcurrencyString = getConfigParam(P_MIRROR_MAXCONCURRENCY);
+        if(mirrorMaxConcurrencyString != null) {
+            this.mirrorMaxConcurrency = Integer.parseInt(mirrorMaxConcurrencyString);
+        }
+
+        String mirrorTimeoutString = getConfigParam(P_MIRROR_TIMEOUT);
+        if(mirrorTimeoutString != null) {
+            this.mirrorTimeout = Integer.parseInt(mirrorTimeoutString);
+        }
+
+        String mirrorBodyBufferSizeString = getConfigParam(P_MIRROR_BODYBUFFERSIZE);
+        if(mirrorBodyBufferSizeString != null) {
+            this.mirrorBodyBufferSize = Integer.parseInt(mirrorBodyBufferSizeString);
+        }
+
+        String streamingContentTypesString = getConfigParam(P_STREAMING_CONTENTTYPES);
+        if(streamingContentTypesString != null) {
+            this.streamingContentTypes = streamingContentTypesString;
+        }
+
+        String streamingCoalesceMicrosString = getConfigParam(P_STREAMING_COALESCEMICROS);
+        if(streamingCoalesceMicrosString != null) {
+            this.streamingCoalesceMicros = Long.parseLong(streamingCoalesceMicrosString);
+        }
+
+        String streamingMaxThreadsString = getConfigParam(P_STREAMING_MAXTHREADS);
+        if(streamingMaxThreadsString != null) {
+            this.streamingMaxThreads = Integer.parseInt(streamingMaxThreadsString);
+        }
+
+        rangeCacheFile = getConfigParam(P_RANGECACHE_FILE);
+
+        String rangeCacheSizeString = getConfigParam(P_RANGECACHE_SIZE);
+        if(rangeCacheSizeString != null) {
+            this.rangeCacheSize = Long.parseLong(rangeCacheSizeString);
+        }
+
+        String rangeCacheSegmentSizeString = getConfigParam(P_RANGECACHE_SEGMENTSIZE);
+        if(rangeCacheSegmentSizeString != null) {
+            this.rangeCacheSegmentSize = Integer.parseInt(rangeCacheSegmentSizeString);
+        }
+
+        String rangeCacheTtlString = getConfigParam(P_RANGECACHE_TTL);
+        if(rangeCacheTtlString != null) {
+            this.rangeCacheTtl = Long.parseLong(rangeCacheTtlString);
+        }
+
+        String doRewriteBodyString = getConfigParam(P_REWRITEBODY);
+        if(doRewriteBodyString != null) {
+            this.doRewriteBody = Boolean.parseBoolean(doRewriteBodyString);
+        }
+
+        String rewriteBodyContentTypesString = getConfigParam(P_REWRITEBODY_CONTENTTYPES);
+        if(rewriteBodyContentTypesString != null) {
+            this.rewriteBodyContentTypes = rewriteBodyContentTypesString;
+        }
+
+        clusterMembers = getConfigParam(P_CLUSTER_MEMBERS);
+        clusterBind = getConfigParam(P_CLUSTER_BIND);
+
+        String clusterTimeoutString = getConfigParam(P_CLUSTER_TIMEOUT);
+        if(clusterTimeoutString != null) {
+            this.clusterTimeout = Integer.parseInt(clusterTimeoutString);
+        }
+
+        String clusterGossipIntervalString = getConfigParam(P_CLUSTER_GOSSIPINTERVAL);
+        if(clusterGossipIntervalString != null) {
+            this.clusterGossipInterval = Long.parseLong(clusterGossipIntervalString);
+        }
+
+        String clusterRetryIntervalString = getConfigParam(P_CLUSTER_RETRYINTERVAL);
+        if(clusterRetryIntervalString != null) {
+            this.clusterRetryInterval = Long.parseLong(clusterRetryIntervalString);
+        }
+
+        String rateLimitString = getConfigParam(P_RATELIMIT);
+        if(rateLimitString != null) {
+            this.rateLimit = Long.parseLong(rateLimitString);
+        }
+
+        String rateLimitWindowString = getConfigParam(P_RATELIMIT_WINDOW);
+        if(rateLimitWindowString != null) {
+            this.rateLimitWindow = Long.parseLong(rateLimitWindowString);
+        }
+
+        initTarget(); // sets targets*
+
+        tracer = createTracer();
+
+        dnsResolver = createDnsResolver();
+
+        proxyClient = createHttpClient();
+
+        accessLogWriter = createAccessLogWriter();
+
+        trafficMirror = createTrafficMirror();
+
+        streamingModes = new HashMap<>();
+        for(String contentType : streamingContentTypes.split(",")) {
+            String mimeType = contentType.trim().toLowerCase(Locale.ROOT);
+            if(!mimeType.isEmpty()) {
+                streamingModes.put(mimeType, StreamingMode.forContentType(mimeType));
+            }
+        }
+
+        streamingExecutor = createStreamingExecutor();
+
+        rangeStore = createRangeObjectStore();
+
+        rewriteBodyMimeTypes = new HashSet<>();
+        for(String contentType : rewriteBodyContentTypes.split(",")) {
+            String mimeType = contentType.trim().toLowerCase(Locale.ROOT);
+            if(!mimeType.isEmpty()) {
+                rewriteBodyMimeTypes.add(mimeType);
+            }
+        }
+
+        clusterNode = createClusterNode();
+        if(clusterNode != null && rangeStore != null) {
+            peerRangeStore = new PeerRangeStore(clusterNode, rangeStore, rangeCacheSegmentSize, this::createPeerOriginSource);
+        }
+        rateLimiter = createRateLimiter();
+        if(clusterNode != null) {
+            try {
+                // 处理器都注册后再开始接收消息
+                clusterNode.start();
+            } catch (IOException e) {
+                throw new ServletException("Trying to start cluster node on " + clusterBind + ": " + e, e);
+            }
+        }
+    }
+
+    protected void initTarget() throws ServletException {
+        targetUri = getConfigParam(P_TARGET_URI);
+        if(targetUri == null) {
+            throw new ServletException(P_TARGET_URI + "is required.");
+        }
+        // 测试是否有效
+        try {
+            targetUriObj = new URI(targetUri);
+        } catch (Exception e) {
+            throw new ServletException("Trying to process targetUri init parameter: "+e,e);
+        }
+        targetHost = URIUtils.extractHost(targetUriObj);
+    }
+
+    /**
+     * Called from { #init(jakarta.servlet.ServletConfig)}.
+     * HttpClient提供了许多定制的机会
+     * 在任何情况下，应该是线程安全的
+     * @return
+     */
+    protected HttpClient createHttpClient() {
+        HttpClientBuilder clientBuilder = getHttpClientBuilder()
+                .setDefaultRequestConfig(buildRequestConfig())
+                .setDefaultSocketConfig(buildSocketConfig());
+
+        if(needsConnectionManager()) {
+            HttpClientConnectionManager connectionManager = createConnectionManager();
+            if(tracer != null) {
+                connectionManager = new TimingConnectionManager(connectionManager);
+                clientBuilder.setRequestExecutor(new TimingHttpRequestExecutor());
+            }
+            clientBuilder.setConnectionManager(connectionManager);
+        } else {
+            clientBuilder.setMaxConnTotal(maxConnections);
+            clientBuilder.setMaxConnPerRoute(maxConnections);
+        }
+
+        if(! doHandleCompression) {
+            clientBuilder.disableContentCompression();
+        }
+
+        if(useSystemProperties) {
+            clientBuilder = clientBuilder.useSystemProperties();
+        }
+        return buildHttpClient(clientBuilder);
+    }
+
+    /**
+     * 是否需要自己创建连接池：链路追踪需要包装连接池记录租用和连接耗时，DNS缓存需要把解析器交给连接池。
+     * 都未启用时由HttpClientBuilder创建连接池，子类在{@link #getHttpClientBuilder()}中的连接设置照常生效
+     * @return
+     */
+    protected boolean needsConnectionManager() {
+        return tracer != null || dnsResolver != SystemDefaultDnsResolver.INSTANCE;
+    }
+
+    /**
+     * 创建连接池。与HttpClientBuilder默认创建的连接池配置一致，
+     * 子类可以覆盖以定制连接池。这个连接池会取代HttpClientBuilder上的SSL和连接数设置
+     * @return
+     */
+    protected HttpClientConnectionManager createConnectionManager() {
+        PoolingHttpClientConnectionManager connectionManager =
+                new PoolingHttpClientConnectionManager(buildSocketFactoryRegistry(), dnsResolver);
+        SocketConfig socketConfig = buildSocketConfig();
+        if(socketConfig != null) {
+            connectionManager.setDefaultSocketConfig(socketConfig);
+        }
+        if(useSystemProperties && "true".equalsIgnoreCase(System.getProperty("http.keepAlive", "true"))) {
+            int max = Integer.parseInt(System.getProperty("http.maxConnections", "5"));
+            connectionManager.setDefaultMaxPerRoute(max);
+            connectionManager.setMaxTotal(2 * max);
+        }
+        if(maxConnections > 0) {
+            connectionManager.setMaxTotal(maxConnections);
+            connectionManager.setDefaultMaxPerRoute(maxConnections);
+        }
+        return connectionManager;
+    }
+
+    protected Registry<ConnectionSocketFactory> buildSocketFactoryRegistry() {
+        return RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", useSystemProperties ?
+                        SSLConnectionSocketFactory.getSystemSocketFactory() :
+                        SSLConnectionSocketFactory.getSocketFactory())
+                .build();
+    }
+
+    /**
+     * 创建后端主机的DNS解析器，代理和镜像的连接池共用。
+     * 子类可以覆盖以使用其他解析方式
+     * @return
+     */
+    protected DnsResolver createDnsResolver() {
+        if(!doDnsCache) {
+            return SystemDefaultDnsResolver.INSTANCE;
+        }
+        return new CachingDnsResolver(SystemDefaultDnsResolver.INSTANCE, dnsTtl, dnsMaxStale);
+    }
+
+    /**
+     * 在应用任何配置之前调整客户机构建
+     * @return
+     */
+    protected HttpClientBuilder getHttpClientBuilder()  {
+        return HttpClientBuilder.create();
+    }
+
+    /**
+     * 子类可以覆盖特定的行为
+     * @return
+     */
+    protected RequestConfig buildRequestConfig() {
+        return RequestConfig.custom()
+                .setRedirectsEnabled(doHandleRedirects)
+                .setCookieSpec(CookieSpecs.IGNORE_COOKIES)
+                .setConnectTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .setConnectionRequestTimeout(connectionRequestTimeout)
+                .build();
+    }
+
+    /**
+     * 子类可以覆盖特定的行为
+     * @return
+     */
+    protected SocketConfig buildSocketConfig() {
+        if(readTimeout < 1) {
+            return null;
+        }
+        return SocketConfig.custom()
+                .setSoTimeout(readTimeout)
+                .build();
+    }
+
+    /**
+     * 来客户端构建器
+     * @param clientBuilder
+     * @return
+     */
+    protected HttpClient buildHttpClient(HttpClientBuilder clientBuilder) {
+        return clientBuilder.build();
+    }
+
+    protected HttpClient getProxyClient() {
+        return proxyClient;
+    }
+
+    /**
+     * 创建异步访问日志写出器，未配置日志文件时返回null
+     * @return
+     * @throws ServletException
+     */
+    protected AsyncAccessLogWriter createAccessLogWriter() throws ServletException {
+        if(accessLogFile == null) {
+            return null;
+        }
+        try {
+            RollingFileOutput output =
+                    new RollingFileOutput(new File(accessLogFile), accessLogMaxBytes, accessLogRollInterval);
+            return new AsyncAccessLogWriter(output, accessLogBufferSize, 256, 1000);
+        } catch (IOException e) {
+            throw new ServletException("Trying to open accessLog " + accessLogFile + ": " + e, e);
+        }
+    }
+
+    protected AsyncAccessLogWriter getAccessLogWriter() {
+        return accessLogWriter;
+    }
+
+    /**
+     * 创建链路追踪器，未启用时返回null
+     * @return
+     * @throws ServletException
+     */
+    protected Tracer createTracer() throws ServletException {
+        if(!doTrace) {
+            return null;
+        }
+        return new Tracer(new BatchSpanProcessor(createSpanExporter(), 4096, 512, 5000), traceSampleRate);
+    }
+
+    /**
+     * 创建span导出器，子类可以覆盖以接入其他追踪系统
+     * @return
+     * @throws ServletException
+     */
+    protected SpanExporter createSpanExporter() throws ServletException {
+        if(traceExporter != null) {
+            try {
+                return (SpanExporter) Class.forName(traceExporter).newInstance();
+            } catch (Exception e) {
+                throw new ServletException("Trying to create " + P_TRACE_EXPORTER + " " + traceExporter + ": " + e, e);
+            }
+        }
+        if(traceFile != null) {
+            try {
+                return new FileSpanExporter(new File(traceFile));
+            } catch (IOException e) {
+                throw new ServletException("Trying to open " + P_TRACE_FILE + " " + traceFile + ": " + e, e);
+            }
+        }
+        // 保留在内存中的span没有人读取，只会占用内存
+        throw new ServletException(P_TRACE + " requires " + P_TRACE_EXPORTER + " or " + P_TRACE_FILE);
+    }
+
+    protected Tracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * 创建流量镜像，未配置影子目标时返回null。
+     * 影子请求使用独立的连接池，超时较短，不重试、不跟随重定向
+     * @return
+     * @throws ServletException
+     */
+    protected TrafficMirror createTrafficMirror() throws ServletException {
+        if(mirrorTargetUri == null) {
+            return null;
+        }
+        HttpHost mirrorHost;
+        try {
+            mirrorHost = URIUtils.extractHost(new URI(mirrorTargetUri));
+        } catch (Exception e) {
+            throw new ServletException("Trying to process " + P_MIRROR_TARGET_URI + " init parameter: " + e, e);
+        }
+        PoolingHttpClientConnectionManager connectionManager =
+                new PoolingHttpClientConnectionManager(buildSocketFactoryRegistry(), dnsResolver);
+        connectionManager.setMaxTotal(mirrorMaxConcurrency);
+        connectionManager.setDefaultMaxPerRoute(mirrorMaxConcurrency);
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setRedirectsEnabled(false)
+                .setCookieSpec(CookieSpecs.IGNORE_COOKIES)
+                .setConnectTimeout(mirrorTimeout)
+                .setSocketTimeout(mirrorTimeout)
+                .setConnectionRequestTimeout(mirrorTimeout)
+                .build();
+        HttpClient mirrorClient = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .disableContentCompression()
+                .disableAutomaticRetries()
+                .build();
+        return new TrafficMirror(mirrorTargetUri, mirrorHost, mirrorClient, mirrorSampleRate,
+                mirrorMaxConcurrency, mirrorBodyBufferSize, mirrorTimeout);
+    }
+
+    protected TrafficMirror getTrafficMirror() {
+        return trafficMirror;
+    }
+
+    /**
+     * 创建范围请求的分段存储，未配置缓存文件时返回null
+     * @return
+     * @throws ServletException
+     */
+    protected RangeObjectStore createRangeObjectStore() throws ServletException {
+        if(rangeCacheFile == null) {
+            return null;
+        }
+        try {
+            SegmentCache cache = new SegmentCache(new File(rangeCacheFile), rangeCacheSegmentSize, rangeCacheSize);
+            return new RangeObjectStore(cache, 10000, rangeCacheTtl);
+        } catch (IOException e) {
+            throw new ServletException("Trying to open " + P_RANGECACHE_FILE + " " + rangeCacheFile + ": " + e, e);
+        }
+    }
+
+    /**
+     * 创建集群节点，没有设置cluster.members时返回null。
+     * 覆盖此方法可以换成其他{@link com.github.httpproxy.proxy.cluster.ClusterTransport}实现
+     */
+    protected ClusterNode createClusterNode() throws ServletException {
+        if(clusterMembers == null) {
+            return null;
+        }
+        if(clusterBind == null) {
+            throw new ServletException(P_CLUSTER_BIND + " is required when " + P_CLUSTER_MEMBERS + " is set.");
+        }
+        List<String> members = new ArrayList<>();
+        for(String member : clusterMembers.split(",")) {
+            if(!member.trim().isEmpty()) {
+                members.add(member.trim());
+            }
+        }
+        TcpClusterTransport transport = null;
+        try {
+            transport = new TcpClusterTransport(clusterBind, clusterTimeout);
+            return new ClusterNode(transport, members, clusterRetryInterval);
+        } catch (IOException | IllegalArgumentException e) {
+            if(transport != null) {
+                try {
+                    transport.close();
+                } catch (IOException closeException) {
+                    // 忽略
+                }
+            }
+            throw new ServletException("Trying to process " + P_CLUSTER_BIND + " " + clusterBind + ": " + e, e);
+        }
+    }
+
+    /**
+     * 创建限流器，rateLimit为0时返回null。有集群节点时计数在成员间汇总
+     */
+    protected ClusterRateLimiter createRateLimiter() {
+        if(rateLimit <= 0) {
+            return null;
+        }
+        return new ClusterRateLimiter(clusterNode, rateLimit, rateLimitWindow, clusterGossipInterval, 2);
+    }
+
+    /**
+     * 作为负责对象的成员，为其他成员转发来的分段请求创建后端数据源。
+     * 只接受本节点targetUri下的对象；和本地一样，带Authorization的请求不缓存
+     */
+    protected SegmentSource createPeerOriginSource(String key, List<String> headers) {
+        if(!key.startsWith(targetUri) || isRangeUncacheable(key)) {
+            return null;
+        }
+        for(int i = 0; i < headers.size(); i += 2) {
+            if(headers.get(i).equalsIgnoreCase(HttpHeaders.AUTHORIZATION) || headers.get(i).equalsIgnoreCase("Cookie")) {
+                return null;
+            }
+        }
+        if(key.length() > targetUri.length() && !targetUri.endsWith("/")
+                && "/?".indexOf(key.charAt(targetUri.length())) < 0) {
+            return null;
+        }
+        final BasicHttpRequest proxyRequest = new BasicHttpRequest("GET", key);
+        for(int i = 0; i + 1 < headers.size(); i += 2) {
+            proxyRequest.addHeader(headers.get(i), headers.get(i + 1));
+        }
+        return (start, end, expected) -> fetchRange(targetHost, proxyRequest, start, end, expected);
+    }
+
+    /**
+     * 创建复制流式响应的线程池，长连接流不占用容器的工作线程。
+     * 线程池满时在容器线程中复制
+     * @return
+     */
+    protected ThreadPoolExecutor createStreamingExecutor() {
+        if(streamingMaxThreads < 1) {
+            return null;
+        }
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(streamingMaxThreads, streamingMaxThreads,
+                60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), r -> {
+                    Thread thread = new Thread(r, "proxy-stream-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @Override
+    public void destroy() {
+        // 客户端实现Closeable:
+        if(proxyClient instanceof Closeable) {
+            try {
+                ((Closeable) proxyClient).close();
+            } catch (IOException e) {
+                log("While destroying servlet, shutting down HttpClient: "+e, e);
+            }
+        } else {
+            // 老版本要求我们这样做:
+            if(proxyClient != null) {
+                proxyClient.getConnectionManager().shutdown();
+            }
+        }
+        if(accessLogWriter != null) {
+            try {
+                accessLogWriter.close();
+            } catch (IOException e) {
+                log("While destroying servlet, closing accessLog: "+e, e);
+            }
+        }
+        if(tracer != null) {
+            try {
+                tracer.close();
+            } catch (IOException e) {
+                log("While destroying servlet, closing tracer: "+e, e);
+            }
+        }
+        if(trafficMirror != null) {
+            try {
+                trafficMirror.close();
+            } catch (IOException e) {
+                log("While destroying servlet, closing mirror: "+e, e);
+            }
+        }
+        if(streamingExecutor != null) {
+            streamingExecutor.shutdownNow();
+        }
+        if(dnsResolver instanceof Closeable) {
+            try {
+                ((Closeable) dnsResolver).close();
+            } catch (IOException e) {
+                log("While destroying servlet, closing DNS resolver: "+e, e);
+            }
+        }
+        if(rateLimiter != null) {
+            rateLimiter.close();
+        }
+        if(clusterNode != null) {
+            try {
+                clusterNode.close();
+            } catch (IOException e) {
+                log("While destroying servlet, closing cluster node: "+e, e);
+            }
+        }
+        if(rangeStore != null) {
+            try {
+                rangeStore.close();
+            } catch (IOException e) {
+                log("While destroying servlet, closing range cache: "+e, e);
+            }
+        }
+        super.destroy();
+    }
+
+    @Override
+    protected void service(HttpServletRequest servletRequest, HttpServletResponse servletResponse)
+            throws ServletException, IOException {
+        // 如果子类此时未设置请求属性，则从缓存初始化请求属性
+        if(servletRequest.getAttribute(ATTR_TARGET_URI) == null) {
+            servletRequest.setAttribute(ATTR_TARGET_URI,targetUri);
+        }
+
+        if(servletRequest.getAttribute(ATTR_TARGET_HOST) == null) {
+            servletRequest.setAttribute(ATTR_TARGET_HOST,targetHost);
+        }
+
+        AccessLogRecord accessLog = null;
+        if(accessLogWriter != null) {
+            accessLog = new AccessLogRecord();
+            servletRequest.setAttribute(ATTR_ACCESS_LOG, accessLog);
+        }
+
+        Span span = null;
+        if(tracer != null) {
+            span = tracer.startProxySpan(servletRequest);
+            servletRequest.setAttribute(ATTR_SPAN, span);
+        }
+
+        if(rateLimiter != null && !rateLimiter.tryAcquire(getRateLimitKey(servletRequest))) {
+            rejectRateLimited(servletRequest, servletResponse);
+            return;
+        }
+
+        // 我们不会转移协议版本，有可能不兼容
+        String method = servletRequest.getMethod();
+        String proxyRequestUri = rewriteUrlFromRequest(servletRequest);
+        HttpRequest proxyRequest;
+
+        boolean hasEntity = servletRequest.getHeader(HttpHeaders.CONTENT_LENGTH) != null ||
+                servletRequest.getHeader(HttpHeaders.TRANSFER_ENCODING) != null;
+
+        // 在创建请求实体之前决定是否镜像，以便复制请求体
+        MirrorRequest mirror = null;
+        if(trafficMirror != null) {
+            mirror = trafficMirror.sample(hasEntity, getContentLength(servletRequest));
+            if(mirror != null) {
+                servletRequest.setAttribute(ATTR_MIRROR, mirror);
+            }
+        }
+
+        if(hasEntity) {
+            proxyRequest = newProxyRequestWithEntity(method,proxyRequestUri,servletRequest);
+        } else {
+            proxyRequest = new BasicHttpRequest(method, proxyRequestUri);
+        }
+
+        copyRequestHeaders(servletRequest, proxyRequest);
+
+        setXForwardedForHeader(servletRequest, proxyRequest);
+
+        if(rangeStore != null) {
+            boolean served = true;
+            try {
+                served = serveRangeFromCache(servletRequest, servletResponse, proxyRequest);
+            } catch (IOException | RuntimeException e) {
+                recordRequestError(servletRequest, e);
+                throw e;
+            } finally {
+                if(served) {
+                    completeProxyExchange(servletRequest, proxyRequest, null);
+                }
+            }
+            if(served) {
+                return;
+            }
+        }
+
+        if(mirror != null) {
+            trafficMirror.submit(mirror, getMirrorTemplate(servletRequest, proxyRequest), proxyRequestUri,
+                    getTargetUri(servletRequest));
+        }
+
+        HttpResponse proxyResponse = null;
+        boolean streamingAsync = false;
+        try {
+            // 执行请求
+            proxyResponse = doExecute(servletRequest, servletResponse, proxyRequest);
+
+            // 处理响应
+            int statusCode = proxyResponse.getStatusLine().getStatusCode();
+            servletResponse.setStatus(statusCode);
+            // 复制响应头以确保来自远程的SESSIONID或其他Coo
+            // 当代理url被重定向到另一个url时，服务器将保存在客户端
+            copyResponseHeaders(proxyResponse,servletRequest,servletResponse);
+
+            if(statusCode == HttpServletResponse.SC_NOT_MODIFIED) {
+                // 304需要特殊处理
+                servletResponse.setIntHeader(HttpHeaders.CONTENT_LENGTH, 0);
+            } else if(startAsyncStreaming(proxyResponse, servletResponse, proxyRequest, servletRequest)) {
+                // 流式响应在独立线程中复制，由它完成收尾
+                streamingAsync = true;
+            } else {
+                // 将内容发送到客户端
+                copyResponseEntity(proxyResponse, servletResponse, proxyRequest, servletRequest);
+            }
+
+        } catch (Exception e) {
+            recordRequestError(servletRequest, e);
+            handleRequestException(proxyRequest, proxyResponse, e);
+        } finally {
+            if(!streamingAsync) {
+                completeProxyExchange(servletRequest, proxyRequest, proxyResponse);
+            }
+        }
+
+    }
+
+    /**
+     * 请求处理结束后的收尾：释放后端连接，提交访问日志、span，结束镜像
+     */
+    protected void completeProxyExchange(HttpServletRequest servletRequest, HttpRequest proxyRequest,
+                                         HttpResponse proxyResponse) {
+        // 确保整个实体都被使用了，这样连接就会被释放
+        if(proxyResponse != null) {
+            EntityUtils.consumeQuietly(proxyResponse.getEntity());
+            // 不需要关闭servlet outputStream
+        }
+        AccessLogRecord accessLog = (AccessLogRecord) servletRequest.getAttribute(ATTR_ACCESS_LOG);
+        if(accessLog != null) {
+            completeAccessLog(accessLog, servletRequest, proxyRequest, proxyResponse);
+        }
+        Span span = (Span) servletRequest.getAttribute(ATTR_SPAN);
+        if(span != null) {
+            finishSpan(span, servletRequest, proxyResponse);
+        }
+        MirrorRequest mirror = (MirrorRequest) servletRequest.getAttribute(ATTR_MIRROR);
+        if(mirror != null) {
+            mirror.primaryComplete();
+        }
+    }
+
+    /**
+     * 限流的key，默认为客户端IP
+     */
+    protected String getRateLimitKey(HttpServletRequest servletRequest) {
+        return servletRequest.getRemoteAddr();
+    }
+
+    /**
+     * 超过限制的请求直接返回429，不转发给后端
+     */
+    protected void rejectRateLimited(HttpServletRequest servletRequest, HttpServletResponse servletResponse) {
+        int status = 429;
+        servletResponse.setStatus(status);
+        servletResponse.setHeader(HttpHeaders.RETRY_AFTER,
+                String.valueOf((rateLimiter.getWindowRemainingMillis() + 999) / 1000));
+        servletResponse.setIntHeader(HttpHeaders.CONTENT_LENGTH, 0);
+        AccessLogRecord accessLog = (AccessLogRecord) servletRequest.getAttribute(ATTR_ACCESS_LOG);
+        if(accessLog != null) {
+            accessLog.setStatus(status);
+        }
+        Span span = (Span) servletRequest.getAttribute(ATTR_SPAN);
+        if(span != null) {
+            span.setAttribute("http.status_code", String.valueOf(status));
+        }
+        completeProxyExchange(servletRequest, null, null);
+    }
+
+    protected void recordRequestError(HttpServletRequest servletRequest, Exception e) {
+        AccessLogRecord accessLog = (AccessLogRecord) servletRequest.getAttribute(ATTR_ACCESS_LOG);
+        if(accessLog != null) {
+            accessLog.setError(e.toString());
+        }
+        Span span = (Span) servletRequest.getAttribute(ATTR_SPAN);
+        if(span != null) {
+            span.setAttribute("error", e.toString());
+        }
+    }
+
+    /**
+     * 由代理处理单个范围的Range请求：按分段从后端获取对象并缓存，从缓存返回206。
+     * 多个范围、If-Range不匹配、后端不支持范围请求或不允许缓存时返回false，请求照常转发给后端。
+     * 带Authorization或Cookie的请求只使用已缓存的public对象，不用它们的凭据获取元数据
+     * @return 已经发送响应时返回true
+     */
+    protected boolean serveRangeFromCache(final HttpServletRequest servletRequest,
+                                          HttpServletResponse servletResponse,
+                                          final HttpRequest proxyRequest) throws IOException {
+        if(!"GET".equals(servletRequest.getMethod())) {
+            return false;
+        }
+        ByteRange range = ByteRange.parse(servletRequest.getHeader(HttpHeaders.RANGE));
+        if(range == null) {
+            return false;
+        }
+        String key = proxyRequest.getRequestLine().getUri();
+        if(isRangeUncacheable(key)) {
+            return false;
+        }
+        SegmentSource source = (start, end, expected) -> fetchRange(servletRequest, proxyRequest, start, end, expected);
+        boolean credentials = servletRequest.getHeader(HttpHeaders.AUTHORIZATION) != null
+                || servletRequest.getHeader("Cookie") != null;
+        // 集群中由负责该对象的成员缓存，本节点只转发分段
+        String owner = peerRangeStore != null ? peerRangeStore.remoteOwner(key) : null;
+        List<String> peerHeaders = null;
+        ObjectMetadata meta = null;
+        if(credentials) {
+            // 按URI共享的缓存不能返回给其他用户的凭据，除非后端声明了public
+            if(owner != null) {
+                return false;
+            }
+            meta = rangeStore.getCachedMetadata(key);
+            if(meta == null || !meta.isShared()) {
+                return false;
+            }
+        } else if(owner != null) {
+            peerHeaders = getPeerRangeHeaders(proxyRequest);
+            try {
+                meta = peerRangeStore.getMetadata(owner, key, peerHeaders);
+            } catch (IOException e) {
+                // 负责的成员不可达时由本节点缓存，cluster.retryInterval内不再访问它
+                log("Cluster member " + owner + " unavailable for " + key + ": " + e);
+                owner = null;
+            }
+        }
+        if(owner == null && meta == null) {
+            meta = rangeStore.getMetadata(key, source);
+        }
+        if(meta == null) {
+            return false;
+        }
+        String ifRange = servletRequest.getHeader(HttpHeaders.IF_RANGE);
+        if(ifRange != null && !meta.matchesIfRange(ifRange)) {
+            // 客户端持有的版本已经过期，交给后端返回完整内容
+            return false;
+        }
+
+        AccessLogRecord accessLog = (AccessLogRecord) servletRequest.getAttribute(ATTR_ACCESS_LOG);
+        int status;
+        long[] bounds = range.resolve(meta.getLength());
+        if(bounds == null) {
+            status = HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
+            servletResponse.setStatus(status);
+            servletResponse.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + meta.getLength());
+            servletResponse.setIntHeader(HttpHeaders.CONTENT_LENGTH, 0);
+        } else {
+            status = HttpServletResponse.SC_PARTIAL_CONTENT;
+            servletResponse.setStatus(status);
+            servletResponse.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+            servletResponse.setHeader(HttpHeaders.CONTENT_RANGE,
+                    "bytes " + bounds[0] + "-" + bounds[1] + "/" + meta.getLength());
+            servletResponse.setHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(bounds[1] - bounds[0] + 1));
+            if(meta.getContentType() != null) {
+                servletResponse.setContentType(meta.getContentType());
+            }
+            if(meta.getEtag() != null) {
+                servletResponse.setHeader(HttpHeaders.ETAG, meta.getEtag());
+            }
+            if(meta.getLastModified() != null) {
+                servletResponse.setHeader(HttpHeaders.LAST_MODIFIED, meta.getLastModified());
+            }
+            List<String> headers = meta.getHeaders();
+            for(int i = 0; i + 1 < headers.size(); i += 2) {
+                servletResponse.addHeader(headers.get(i), headers.get(i + 1));
+            }
+            OutputStream os = servletResponse.getOutputStream();
+            if(accessLog != null) {
+                os = new CountingOutputStream(os, accessLog);
+            }
+            if(owner != null) {
+                peerRangeStore.copyRange(owner, key, meta, bounds[0], bounds[1], peerHeaders, os);
+            } else {
+                rangeStore.copyRange(key, meta, bounds[0], bounds[1], source, os);
+            }
+        }
+
+        if(accessLog != null) {
+            accessLog.setStatus(status);
+        }
+        Span span = (Span) servletRequest.getAttribute(ATTR_SPAN);
+        if(span != null) {
+            span.setAttribute("http.status_code", String.valueOf(status));
+            span.setAttribute("cache", owner != null ? "range-peer" : "range");
+        }
+        return true;
+    }
+
+    /**
+     * 向后端请求对象的一个字节范围，请求头以代理请求为模板，去掉客户端的条件请求头
+     * @return 后端没有返回206或不允许共享缓存时返回null
+     */
+    protected RangeResponse fetchRange(HttpServletRequest servletRequest, HttpRequest proxyRequest,
+                                       long start, long end, ObjectMetadata expected) throws IOException {
+        return fetchRange(getTargetHost(servletRequest), proxyRequest, start, end, expected);
+    }
+
+    /**
+     * 转发给负责对象的成员的请求头，依次为名称和值
+     */
+    protected List<String> getPeerRangeHeaders(HttpRequest proxyRequest) {
+        List<String> headers = new ArrayList<>();
+        for(Header header : proxyRequest.getAllHeaders()) {
+            if(!rangeRequestHeaders.containsHeader(header.getName())) {
+                headers.add(header.getName());
+                headers.add(header.getValue());
+            }
+        }
+        return headers;
+    }
+
+    protected RangeResponse fetchRange(HttpHost targetHost, HttpRequest proxyRequest,
+                                       long start, long end, ObjectMetadata expected) throws IOException {
+        BasicHttpRequest rangeRequest = new BasicHttpRequest("GET", proxyRequest.getRequestLine().getUri());
+        for(Header header : proxyRequest.getAllHeaders()) {
+            if(!rangeRequestHeaders.containsHeader(header.getName())) {
+                rangeRequest.addHeader(header);
+            }
+        }
+        rangeRequest.setHeader(HttpHeaders.RANGE, "bytes=" + start + "-" + end);
+        // 分段必须是未编码内容的字节偏移
+        rangeRequest.setHeader(HttpHeaders.ACCEPT_ENCODING, "identity");
+        if(expected != null && expected.getIfRangeValidator() != null) {
+            rangeRequest.setHeader(HttpHeaders.IF_RANGE, expected.getIfRangeValidator());
         }
 
-        String useSystemPropertiesString = getConfigParam(P_USESYSTEMPROPERTIES);
-        if(useSystemPropertiesString != null) {
-            this.useSystemProperties = Boolean.parseBoolean(useSystemPropertiesString);
+        HttpResponse response = proxyClient.execute(targetHost, rangeRequest);
+        HttpEntity entity = response.getEntity();
+        Header contentRange = response.getFirstHeader(HttpHeaders.CONTENT_RANGE);
+        long maxAge = getRangeMaxAge(response);
+        long[] returned = ByteRange.parseContentRange(contentRange != null ? contentRange.getValue() : null);
+        long length = returned != null ? returned[2] : -1;
+        if(response.getStatusLine().getStatusCode() != HttpServletResponse.SC_PARTIAL_CONTENT || entity == null
+                || !isRequestedRange(returned, start, end, entity)
+                || response.getFirstHeader(HttpHeaders.CONTENT_ENCODING) != null
+                || maxAge == 0 || response.getFirstHeader("Set-Cookie") != null
+                || variesByRequest(response)) {
+            if(expected == null) {
+                // 获取元数据时的探测，expected不为null时是If-Range不匹配，对象只是变了
+                markRangeUncacheable(rangeRequest.getRequestLine().getUri());
+            }
+            discardRangeResponse(response);
+            return null;
+        }
+        Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+        Header lastModified = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+        Header contentType = response.getFirstHeader(HttpHeaders.CONTENT_TYPE);
+        List<String> headers = new ArrayList<>();
+        for(Header header : response.getAllHeaders()) {
+            if(rangeRepresentationHeaders.containsHeader(header.getName())) {
+                headers.add(header.getName());
+                headers.add(header.getValue());
+            }
         }
+        ObjectMetadata meta = new ObjectMetadata(length,
+                etag != null ? etag.getValue() : null,
+                lastModified != null ? lastModified.getValue() : null,
+                contentType != null ? contentType.getValue() : null,
+                headers, maxAge, hasCacheDirective(response, "public"));
+        if(meta.getIfRangeValidator() == null) {
+            // 无法确认对象版本，不缓存
+            markRangeUncacheable(rangeRequest.getRequestLine().getUri());
+            discardRangeResponse(response);
+            return null;
+        }
+        return new RangeResponse(meta, entity.getContent(), () -> EntityUtils.consumeQuietly(entity));
+    }
 
-        String doHandleCompression = getConfigParam(P_HANDLECOMPRESSION);
-        if(doHandleCompression != null) {
-            this.doHandleCompression = Boolean.parseBoolean(doHandleCompression);
+    /**
+     * 后端返回的范围是否正好是请求的分段，否则数据会被缓存在错误的偏移上
+     */
+    private static boolean isRequestedRange(long[] returned, long start, long end, HttpEntity entity) {
+        if(returned == null || returned[0] != start || returned[1] != Math.min(end, returned[2] - 1)) {
+            return false;
         }
+        long contentLength = entity.getContentLength();
+        return contentLength < 0 || contentLength == returned[1] - returned[0] + 1;
+    }
 
-        initTarget(); // sets targets*
+    /**
+     * 放弃不使用的分段响应：关闭连接而不是读完响应体，后端返回200时响应体是整个对象
+     */
+    protected static void discardRangeResponse(HttpResponse response) {
+        if(response instanceof Closeable) {
+            try {
+                ((Closeable) response).close();
+            } catch (IOException e) {
+                // 忽略
+            }
+        } else {
+            EntityUtils.consumeQuietly(response.getEntity());
+        }
+    }
 
-        proxyClient = createHttpClient();
+    protected void markRangeUncacheable(String key) {
+        rangeUncacheable.put(key, System.currentTimeMillis() + rangeCacheTtl);
     }
 
-    protected void initTarget() throws ServletException {
-        targetUri = getConfigParam(P_TARGET_URI);
-        if(targetUri == null) {
-            throw new ServletException(P_TARGET_URI + "is required.");
+    protected boolean isRangeUncacheable(String key) {
+        Long until = rangeUncacheable.get(key);
+        if(until == null) {
+            return false;
         }
-        // 测试是否有效
-        try {
-            targetUriObj = new URI(targetUri);
-        } catch (Exception e) {
-            throw new ServletException("Trying to process targetUri init parameter: "+e,e);
+        if(System.currentTimeMillis() >= until) {
+            rangeUncacheable.remove(key);
+            return false;
         }
-        targetHost = URIUtils.extractHost(targetUriObj);
+        return true;
     }
 
     /**
-     * Called from { #init(jakarta.servlet.ServletConfig)}.
-     * HttpClient提供了许多定制的机会
-     * 在任何情况下，应该是线程安全的
-     * @return
+     * 影子请求的请求头模板。启用链路追踪时影子请求使用自己的子span，
+     * 不与主请求共用spanId，否则两个后端的span在链路中无法区分
      */
-    protected HttpClient createHttpClient() {
-        HttpClientBuilder clientBuilder = getHttpClientBuilder()
-                .setDefaultRequestConfig(buildRequestConfig())
-                .setDefaultSocketConfig(buildSocketConfig());
-
-        clientBuilder.setMaxConnTotal(maxConnections);
-        clientBuilder.setMaxConnPerRoute(maxConnections);
+    protected HttpRequest getMirrorTemplate(HttpServletRequest servletRequest, HttpRequest proxyRequest) {
+        Span span = (Span) servletRequest.getAttribute(ATTR_SPAN);
+        if(span == null || tracer == null) {
+            return proxyRequest;
+        }
+        HttpRequest template = new BasicHttpRequest(proxyRequest.getRequestLine());
+        template.setHeaders(proxyRequest.getAllHeaders());
+        long now = System.nanoTime();
+        Span mirrorSpan = span.addChild("mirror", now, now);
+        String propagation = span.getAttributes().get("propagation");
+        if(propagation != null) {
+            mirrorSpan.setAttribute("propagation", propagation);
+        }
+        tracer.inject(mirrorSpan, template);
+        return template;
+    }
 
-        if(! doHandleCompression) {
-            clientBuilder.disableContentCompression();
+    /**
+     * 共享缓存中的有效期，依次取s-maxage、max-age、Expires减Date，没有指定时返回-1。
+     * no-store、no-cache、private或已经过期的响应返回0，不能缓存
+     */
+    protected long getRangeMaxAge(HttpResponse response) {
+        if(hasCacheDirective(response, "no-store") || hasCacheDirective(response, "no-cache")
+                || hasCacheDirective(response, "private")) {
+            return 0;
+        }
+        String seconds = getCacheDirective(response, "s-maxage");
+        if(seconds == null) {
+            seconds = getCacheDirective(response, "max-age");
+        }
+        if(seconds != null) {
+            try {
+                return Math.min(Math.max(0, Long.parseLong(seconds.trim())), Long.MAX_VALUE / 1000) * 1000;
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        Header expires = response.getFirstHeader(HttpHeaders.EXPIRES);
+        if(expires == null) {
+            return -1;
         }
+        // 无法解析的Expires(如"0")表示已经过期
+        Date expiresDate = DateUtils.parseDate(expires.getValue());
+        if(expiresDate == null) {
+            return 0;
+        }
+        Header date = response.getFirstHeader(HttpHeaders.DATE);
+        Date responseDate = date != null ? DateUtils.parseDate(date.getValue()) : null;
+        long now = responseDate != null ? responseDate.getTime() : System.currentTimeMillis();
+        return Math.max(0, expiresDate.getTime() - now);
+    }
 
-        if(useSystemProperties) {
-            clientBuilder = clientBuilder.useSystemProperties();
+    protected static boolean hasCacheDirective(HttpResponse response, String directive) {
+        for(Header header : response.getHeaders(HttpHeaders.CACHE_CONTROL)) {
+            for(HeaderElement element : header.getElements()) {
+                if(element.getName().equalsIgnoreCase(directive)) {
+                    return true;
+                }
+            }
         }
-        return buildHttpClient(clientBuilder);
+        return false;
     }
 
     /**
-     * 在应用任何配置之前调整客户机构建
-     * @return
+     * @return Cache-Control中指令的值，没有该指令或指令没有值时返回null
      */
-    protected HttpClientBuilder getHttpClientBuilder()  {
-        return HttpClientBuilder.create();
+    protected static String getCacheDirective(HttpResponse response, String directive) {
+        for(Header header : response.getHeaders(HttpHeaders.CACHE_CONTROL)) {
+            for(HeaderElement element : header.getElements()) {
+                if(element.getName().equalsIgnoreCase(directive) && element.getValue() != null) {
+                    return element.getValue();
+                }
+            }
+        }
+        return null;
     }
 
     /**
-     * 子类可以覆盖特定的行为
-     * @return
+     * 响应是否随请求头变化，这样的响应不能放进按URI共享的缓存。
+     * 分段请求总是发送Accept-Encoding: identity，所以只按Accept-Encoding变化的响应可以缓存
      */
-    protected RequestConfig buildRequestConfig() {
-        return RequestConfig.custom()
-                .setRedirectsEnabled(doHandleRedirects)
-                .setCookieSpec(CookieSpecs.IGNORE_COOKIES)
-                .setConnectTimeout(connectTimeout)
-                .setSocketTimeout(readTimeout)
-                .setConnectionRequestTimeout(connectionRequestTimeout)
-                .build();
+    protected boolean variesByRequest(HttpResponse response) {
+        for(Header vary : response.getHeaders(HttpHeaders.VARY)) {
+            for(String name : vary.getValue().split(",")) {
+                String trimmed = name.trim();
+                if(!trimmed.isEmpty() && !trimmed.equalsIgnoreCase(HttpHeaders.ACCEPT_ENCODING)) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     /**
-     * 子类可以覆盖特定的行为
-     * @return
+     * 随分段元数据保存、从缓存返回206时一起返回的后端响应头
      */
-    protected SocketConfig buildSocketConfig() {
-        if(readTimeout < 1) {
-            return null;
+    protected static final HeaderGroup rangeRepresentationHeaders;
+    static {
+        rangeRepresentationHeaders = new HeaderGroup();
+        String[] headers = new String[] {
+                "Content-Disposition", HttpHeaders.CACHE_CONTROL, HttpHeaders.EXPIRES,
+                HttpHeaders.CONTENT_LANGUAGE, HttpHeaders.VARY
+        };
+        for(String header: headers) {
+            rangeRepresentationHeaders.addHeader(new BasicHeader(header, null));
         }
-        return SocketConfig.custom()
-                .setSoTimeout(readTimeout)
-                .build();
     }
 
     /**
-     * 来客户端构建器
-     * @param clientBuilder
-     * @return
+     * 向后端请求分段时不转发的客户端请求头
      */
-    protected HttpClient buildHttpClient(HttpClientBuilder clientBuilder) {
-        return clientBuilder.build();
+    protected static final HeaderGroup rangeRequestHeaders;
+    static {
+        rangeRequestHeaders = new HeaderGroup();
+        String[] headers = new String[] {
+                HttpHeaders.RANGE, HttpHeaders.IF_RANGE, HttpHeaders.IF_MATCH, HttpHeaders.IF_NONE_MATCH,
+                HttpHeaders.IF_MODIFIED_SINCE, HttpHeaders.IF_UNMODIFIED_SINCE, HttpHeaders.ACCEPT_ENCODING
+        };
+        for(String header: headers) {
+            rangeRequestHeaders.addHeader(new BasicHeader(header, null));
+        }
     }
 
-    protected HttpClient getProxyClient() {
-        return proxyClient;
+    /**
+     * 流式响应的事件分隔方式，不是流式响应时返回null
+     */
+    protected StreamingMode getStreamingMode(HttpResponse proxyResponse) {
+        if(streamingModes == null || streamingModes.isEmpty()) {
+            return null;
+        }
+        Header contentType = proxyResponse.getFirstHeader(HttpHeaders.CONTENT_TYPE);
+        if(contentType == null) {
+            return null;
+        }
+        String mimeType = contentType.getValue();
+        int semicolon = mimeType.indexOf(';');
+        if(semicolon >= 0) {
+            mimeType = mimeType.substring(0, semicolon);
+        }
+        return streamingModes.get(mimeType.trim().toLowerCase(Locale.ROOT));
     }
 
-    @Override
-    public void destroy() {
-        // 客户端实现Closeable:
-        if(proxyClient instanceof Closeable) {
+    /**
+     * 对流式响应开启异步处理，在流式线程池中复制响应体，容器线程立即返回。
+     * 线程池已满时在当前线程中复制
+     * @return 已经交给异步处理时返回true，收尾工作也由异步任务完成
+     */
+    protected boolean startAsyncStreaming(final HttpResponse proxyResponse, final HttpServletResponse servletResponse,
+                                          final HttpRequest proxyRequest, final HttpServletRequest servletRequest) {
+        if(streamingExecutor == null || proxyResponse.getEntity() == null
+                || !servletRequest.isAsyncSupported() || getStreamingMode(proxyResponse) == null) {
+            return false;
+        }
+        final AsyncContext asyncContext = servletRequest.startAsync();
+        // 长连接流不设超时，由后端或客户端关闭
+        asyncContext.setTimeout(0);
+        Runnable task = () -> {
             try {
-                ((Closeable) proxyClient).close();
-            } catch (IOException e) {
-                log("While destroying servlet, shutting down HttpClient: "+e, e);
-            }
-        } else {
-            // 老版本要求我们这样做:
-            if(proxyClient != null) {
-                proxyClient.getConnectionManager().shutdown();
+                copyResponseEntity(proxyResponse, servletResponse, proxyRequest, servletRequest);
+            } catch (Exception e) {
+                recordRequestError(servletRequest, e);
+                // 客户端断开时关闭响应以终止后端流
+                if(proxyResponse instanceof Closeable) {
+                    try {
+                        ((Closeable) proxyResponse).close();
+                    } catch (IOException ignored) {
+                        // 忽略
+                    }
+                }
+            } finally {
+                completeProxyExchange(servletRequest, proxyRequest, proxyResponse);
+                asyncContext.complete();
             }
+        };
+        try {
+            streamingExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
         }
-        super.destroy();
+        return true;
     }
 
-    @Override
-    protected void service(HttpServletRequest servletRequest, HttpServletResponse servletResponse)
-            throws ServletException, IOException {
-        // 如果子类此时未设置请求属性，则从缓存初始化请求属性
-        if(servletRequest.getAttribute(ATTR_TARGET_URI) == null) {
-            servletRequest.setAttribute(ATTR_TARGET_URI,targetUri);
-        }
-
-        if(servletRequest.getAttribute(ATTR_TARGET_HOST) == null) {
-            servletRequest.setAttribute(ATTR_TARGET_HOST,targetHost);
+    /**
+     * 填充访问日志记录并提交给异步写出器，不会阻塞请求线程
+     */
+    protected void completeAccessLog(AccessLogRecord accessLog, HttpServletRequest servletRequest,
+                                     HttpRequest proxyRequest, HttpResponse proxyResponse) {
+        accessLog.markComplete();
+        accessLog.setMethod(servletRequest.getMethod());
+        accessLog.setRequestUri(servletRequest.getRequestURI());
+        if(proxyRequest != null) {
+            accessLog.setTargetUri(proxyRequest.getRequestLine().getUri());
         }
-
-        // 我们不会转移协议版本，有可能不兼容
-        String method = servletRequest.getMethod();
-        String proxyRequestUri = rewriteUrlFromRequest(servletRequest);
-        HttpRequest proxyRequest;
-
-        if(servletRequest.getHeader(HttpHeaders.CONTENT_LENGTH) != null ||
-                servletRequest.getHeader(HttpHeaders.TRANSFER_ENCODING) != null) {
-            proxyRequest = newProxyRequestWithEntity(method,proxyRequestUri,servletRequest);
-        } else {
-            proxyRequest = new BasicHttpRequest(method, proxyRequestUri);
+        accessLog.setRemoteAddr(servletRequest.getRemoteAddr());
+        if(proxyResponse != null) {
+            accessLog.setStatus(proxyResponse.getStatusLine().getStatusCode());
         }
+        accessLogWriter.append(accessLog);
+    }
 
-        copyRequestHeaders(servletRequest, proxyRequest);
-
-        setXForwardedForHeader(servletRequest, proxyRequest);
-
-        HttpResponse proxyResponse = null;
-        try {
-            // 执行请求
-            proxyResponse = doExecute(servletRequest, servletResponse, proxyRequest);
-
-            // 处理响应
-            int statusCode = proxyResponse.getStatusLine().getStatusCode();
-            servletResponse.setStatus(statusCode);
-            // 复制响应头以确保来自远程的SESSIONID或其他Coo
-            // 当代理url被重定向到另一个url时，服务器将保存在客户端
-            copyResponseHeaders(proxyResponse,servletRequest,servletResponse);
-
-            if(statusCode == HttpServletResponse.SC_NOT_MODIFIED) {
-                // 304需要特殊处理
-                servletResponse.setIntHeader(HttpHeaders.CONTENT_LENGTH, 0);
-            } else {
-                // 将内容发送到客户端
-                copyResponseEntity(proxyResponse, servletResponse, proxyRequest, servletRequest);
-            }
-
-        } catch (Exception e) {
-            handleRequestException(proxyRequest, proxyResponse, e);
-        } finally {
-            // 确保整个实体都被使用了，这样连接就会被释放
-            if(proxyResponse != null) {
-                EntityUtils.consumeQuietly(proxyResponse.getEntity());
-                // 不需要关闭servlet outputStream
-            }
+    /**
+     * 记录span属性并结束span
+     */
+    protected void finishSpan(Span span, HttpServletRequest servletRequest, HttpResponse proxyResponse) {
+        span.setAttribute("http.method", servletRequest.getMethod());
+        span.setAttribute("http.target", servletRequest.getRequestURI());
+        if(proxyResponse != null) {
+            span.setAttribute("http.status_code", String.valueOf(proxyResponse.getStatusLine().getStatusCode()));
         }
-
+        tracer.finish(span);
     }
 
     //从代理复制响应体数据(实体)到servlet客户端
@@ -392,10 +1756,31 @@ public class ProxyServlet extends HttpServlet {
 
         HttpEntity entity = proxyResponse.getEntity();
         if(entity != null) {
-            if(entity.isChunked()) {
+            AccessLogRecord accessLog = (AccessLogRecord) servletRequest.getAttribute(ATTR_ACCESS_LOG);
+            Span span = (Span) servletRequest.getAttribute(ATTR_SPAN);
+            long streamStart = System.nanoTime();
+            StreamingMode streamingMode = getStreamingMode(proxyResponse);
+            if(servletRequest.getAttribute(ATTR_REWRITE_BODY) != null) {
+                OutputStream os = servletResponse.getOutputStream();
+                if(accessLog != null) {
+                    os = new CountingOutputStream(os, accessLog);
+                }
+                copyRewrittenEntity(proxyResponse, entity, servletRequest, os);
+            } else if(streamingMode != null) {
+                // SSE和流式JSON按事件边界刷新
+                OutputStream os = servletResponse.getOutputStream();
+                if(accessLog != null) {
+                    os = new CountingOutputStream(os, accessLog);
+                }
+                new EventStreamCopier(streamingMode, streamingCoalesceMicros, doHandleCompression)
+                        .copy(entity.getContent(), os);
+            } else if(entity.isChunked()) {
                 //  在阻塞输入之前刷新中间结果——SSE
                 InputStream is = entity.getContent();
                 OutputStream os = servletResponse.getOutputStream();
+                if(accessLog != null) {
+                    os = new CountingOutputStream(os, accessLog);
+                }
                 byte[] buffer = new byte[10 * 1024];
                 int read;
                 while ((read = is.read(buffer)) != -1) {
@@ -418,9 +1803,109 @@ public class ProxyServlet extends HttpServlet {
                 // 实体关闭/清理在调用者中完成(#service)
             } else {
                 OutputStream servletOutputStream = servletResponse.getOutputStream();
+                if(accessLog != null) {
+                    servletOutputStream = new CountingOutputStream(servletOutputStream, accessLog);
+                }
                 entity.writeTo(servletOutputStream);
             }
+            if(span != null) {
+                span.addChild("response.stream", streamStart, System.nanoTime());
+            }
+        }
+    }
+
+    /**
+     * 把响应体中指向后端的绝对URL替换为代理的URL后复制给客户端。
+     * 边读边替换，只保留可能成为匹配的少量字节，不缓冲整个响应；
+     * gzip/deflate压缩的响应先解压，替换后重新压缩
+     */
+    protected void copyRewrittenEntity(HttpResponse proxyResponse, HttpEntity entity,
+                                       HttpServletRequest servletRequest, OutputStream os) throws IOException {
+        InputStream is = entity.getContent();
+        DeflaterOutputStream encoder = null;
+        String contentEncoding = getContentEncoding(proxyResponse);
+        if("gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding)) {
+            is = new GZIPInputStream(is);
+            encoder = new GZIPOutputStream(os, 8 * 1024, true);
+        } else if("deflate".equals(contentEncoding)) {
+            is = new InflaterInputStream(is);
+            encoder = new DeflaterOutputStream(os, new Deflater(), 8 * 1024, true);
+        }
+        RewritingOutputStream rewriter = newBodyRewriter(servletRequest, encoder != null ? encoder : os);
+        // 解压流的available()不可靠，见下面的说明
+        boolean unreliableAvailable = encoder != null || doHandleCompression;
+        StreamingMode streamingMode = getStreamingMode(proxyResponse);
+        if(streamingMode != null) {
+            new EventStreamCopier(streamingMode, streamingCoalesceMicros, unreliableAvailable).copy(is, rewriter);
+        } else {
+            byte[] buffer = new byte[10 * 1024];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                rewriter.write(buffer, 0, read);
+                if(entity.isChunked() && (unreliableAvailable || is.available() == 0)) {
+                    rewriter.flush();
+                }
+            }
+        }
+        rewriter.finish();
+        if(encoder != null) {
+            encoder.finish();
+        }
+    }
+
+    /**
+     * 创建替换响应体中后端URL的输出流。
+     * 同时匹配JSON中转义为 \/ 的形式
+     */
+    protected RewritingOutputStream newBodyRewriter(HttpServletRequest servletRequest, OutputStream os) {
+        final String targetUri = getTargetUri(servletRequest);
+        AhoCorasickMatcher matcher = rewriteMatchers.computeIfAbsent(targetUri,
+                uri -> new AhoCorasickMatcher(toBytes(uri, jsonEscapeSlashes(uri))));
+        String proxyBaseUrl = getProxyBaseUrl(servletRequest);
+        return new RewritingOutputStream(os, matcher, toBytes(proxyBaseUrl, jsonEscapeSlashes(proxyBaseUrl)));
+    }
+
+    private static String jsonEscapeSlashes(String url) {
+        return url.replace("/", "\\/");
+    }
+
+    private static byte[][] toBytes(String... values) {
+        byte[][] bytes = new byte[values.length][];
+        for(int i = 0; i < values.length; i++) {
+            bytes[i] = values[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return bytes;
+    }
+
+    /**
+     * 是否替换响应体中的后端URL：类型在rewriteBody.contentTypes中，编码方式可以解压，且不是部分内容
+     */
+    protected boolean shouldRewriteBody(HttpResponse proxyResponse) {
+        Header contentType = proxyResponse.getFirstHeader(HttpHeaders.CONTENT_TYPE);
+        if(contentType == null || proxyResponse.getEntity() == null) {
+            return false;
+        }
+        // 部分内容替换后字节偏移不再对应Content-Range，客户端无法续传
+        if(proxyResponse.getStatusLine().getStatusCode() == HttpServletResponse.SC_PARTIAL_CONTENT
+                || proxyResponse.getFirstHeader(HttpHeaders.CONTENT_RANGE) != null) {
+            return false;
+        }
+        String mimeType = contentType.getValue();
+        int semicolon = mimeType.indexOf(';');
+        if(semicolon >= 0) {
+            mimeType = mimeType.substring(0, semicolon);
         }
+        if(!rewriteBodyMimeTypes.contains(mimeType.trim().toLowerCase(Locale.ROOT))) {
+            return false;
+        }
+        String contentEncoding = getContentEncoding(proxyResponse);
+        return contentEncoding == null || "identity".equals(contentEncoding) || "gzip".equals(contentEncoding)
+                || "x-gzip".equals(contentEncoding) || "deflate".equals(contentEncoding);
+    }
+
+    private static String getContentEncoding(HttpResponse proxyResponse) {
+        Header contentEncoding = proxyResponse.getFirstHeader(HttpHeaders.CONTENT_ENCODING);
+        return contentEncoding == null ? null : contentEncoding.getValue().trim().toLowerCase(Locale.ROOT);
     }
 
     protected void handleRequestException(HttpRequest proxyRequest, HttpResponse proxyResponse, Exception e)
@@ -453,7 +1938,42 @@ public class ProxyServlet extends HttpServlet {
             log("proxy " + servletRequest.getMethod() + " uri: " + servletRequest.getRequestURI() + " -- " +
                     proxyRequest.getRequestLine().getUri());
         }
-        return proxyClient.execute(getTargetHost(servletRequest), proxyRequest);
+        AccessLogRecord accessLog = (AccessLogRecord) servletRequest.getAttribute(ATTR_ACCESS_LOG);
+        Span span = (Span) servletRequest.getAttribute(ATTR_SPAN);
+        if(accessLog == null && span == null) {
+            return proxyClient.execute(getTargetHost(servletRequest), proxyRequest);
+        }
+        HttpClientContext context = HttpClientContext.create();
+        if(span != null) {
+            context.setAttribute(Span.CONTEXT_ATTR, span);
+            span.markExecuteStart();
+        }
+        HttpResponse proxyResponse = proxyClient.execute(getTargetHost(servletRequest), proxyRequest, context);
+        String upstreamAddress = getUpstreamAddress(servletRequest, context);
+        if(accessLog != null) {
+            accessLog.markUpstreamResponse();
+            accessLog.setUpstreamAddress(upstreamAddress);
+        }
+        if(span != null) {
+            span.setAttribute("upstream", upstreamAddress);
+        }
+        return proxyResponse;
+    }
+
+    /**
+     * 实际连接的后端地址，连接已释放时退回到目标主机
+     */
+    protected String getUpstreamAddress(HttpServletRequest servletRequest, HttpClientContext context) {
+        HttpConnection connection = context.getConnection();
+        if(connection instanceof HttpInetConnection) {
+            try {
+                HttpInetConnection inetConnection = (HttpInetConnection) connection;
+                return inetConnection.getRemoteAddress().getHostAddress() + ":" + inetConnection.getRemotePort();
+            } catch (RuntimeException e) {
+                // 连接已经归还连接池
+            }
+        }
+        return getTargetHost(servletRequest).toHostString();
     }
 
     /**
@@ -469,11 +1989,20 @@ public class ProxyServlet extends HttpServlet {
             copyRequestHeader(servletRequest, proxyRequest, headerName);
         }
 
+        // 用代理span替换客户端的传播头
+        Span span = (Span) servletRequest.getAttribute(ATTR_SPAN);
+        if(span != null) {
+            tracer.inject(span, proxyRequest);
+        }
     }
 
     protected void copyResponseHeaders(HttpResponse proxyResponse, HttpServletRequest servletRequest,
                                        HttpServletResponse servletResponse) {
 
+        // 替换URL会改变响应体长度，需要在复制响应头之前决定
+        if(doRewriteBody && shouldRewriteBody(proxyResponse)) {
+            servletRequest.setAttribute(ATTR_REWRITE_BODY, Boolean.TRUE);
+        }
         for(Header header: proxyResponse.getAllHeaders()) {
             copyResponseHeader(servletRequest, servletResponse,header);
         }
@@ -494,7 +2023,17 @@ public class ProxyServlet extends HttpServlet {
         if(hopByHopHeaders.containsHeader(headerName)) {
             return;
         }
+        boolean rewriteBody = servletRequest.getAttribute(ATTR_REWRITE_BODY) != null;
+        // 替换后的响应体长度未知，范围请求得到的是未替换的内容，也不能再按字节续传
+        if(rewriteBody && (headerName.equalsIgnoreCase(HttpHeaders.CONTENT_LENGTH)
+                || headerName.equalsIgnoreCase(HttpHeaders.ACCEPT_RANGES))) {
+            return;
+        }
         String headerValue = header.getValue();
+        // 替换后的内容与后端不是逐字节相同，强ETag降为弱ETag
+        if(rewriteBody && headerName.equalsIgnoreCase(HttpHeaders.ETAG) && !headerValue.startsWith("W/")) {
+            headerValue = "W/" + headerValue;
+        }
         if(headerName.equalsIgnoreCase(org.apache.http.cookie.SM.SET_COOKIE)
                 || headerName.equalsIgnoreCase(org.apache.http.cookie.SM.SET_COOKIE2)) {
             copyProxyCookie(servletRequest, servletResponse, headerValue);
@@ -535,26 +2074,32 @@ public class ProxyServlet extends HttpServlet {
              * 我们通过获取当前请求并重写路径部分来实现这一点
              * 使用servlet的绝对路径和返回URL的路径在基本目标URL后面
              */
-            StringBuffer curUrl = servletRequest.getRequestURL();
-            int pos;
-            //  跳过协议部分
-            if((pos = curUrl.indexOf("://"))>= 0 ) {
-                // + 3跳过协议和权限之间的分隔符
-                if((pos = curUrl.indexOf("/", pos + 3)) >= 0) {
-                    // 修剪鉴权部分之后的所有内容。
-                    curUrl.setLength(pos);
-                }
-            }
-            // 如果上下文路径不为空，则以“/”开头
-            curUrl.append(servletRequest.getContextPath());
-            // 如果Servlet路径不为空，则以/开头
-            curUrl.append(servletRequest.getServletPath());
-            curUrl.append(theUrl,targetUri.length(), theUrl.length());
-            return curUrl.toString();
+            return getProxyBaseUrl(servletRequest) + theUrl.substring(targetUri.length());
         }
         return theUrl;
     }
 
+    /**
+     * 客户端访问代理servlet的绝对URL，用来替换后端的targetUri
+     */
+    protected String getProxyBaseUrl(HttpServletRequest servletRequest) {
+        StringBuffer curUrl = servletRequest.getRequestURL();
+        int pos;
+        //  跳过协议部分
+        if((pos = curUrl.indexOf("://"))>= 0 ) {
+            // + 3跳过协议和权限之间的分隔符
+            if((pos = curUrl.indexOf("/", pos + 3)) >= 0) {
+                // 修剪鉴权部分之后的所有内容。
+                curUrl.setLength(pos);
+            }
+        }
+        // 如果上下文路径不为空，则以“/”开头
+        curUrl.append(servletRequest.getContextPath());
+        // 如果Servlet路径不为空，则以/开头
+        curUrl.append(servletRequest.getServletPath());
+        return curUrl.toString();
+    }
+
     /**
      * 从原始cookie创建代理cookie。
      * @param servletRequest
@@ -801,8 +2346,14 @@ public class ProxyServlet extends HttpServlet {
         HttpEntityEnclosingRequest eProxyRequest =
                 new BasicHttpEntityEnclosingRequest(method, proxyRequestUri);
 
+        InputStream requestBody = servletRequest.getInputStream();
+        // 镜像时请求体边读边复制给影子请求，不缓冲整个请求体
+        MirrorRequest mirror = (MirrorRequest) servletRequest.getAttribute(ATTR_MIRROR);
+        if(mirror != null) {
+            requestBody = mirror.tee(requestBody);
+        }
         eProxyRequest.setEntity(
-                new InputStreamEntity(servletRequest.getInputStream(), getContentLength(servletRequest))
+                new InputStreamEntity(requestBody, getContentLength(servletRequest))
         );
 
         return eProxyRequest;
@@ -0,0 +1,140 @@
+package com.github.httpproxy.proxy.cluster;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 集群中的一个节点：成员列表固定，通过{@link ClusterTransport}收发消息，
+ * 消息的第一个字节为类型，按类型分发给注册的处理器。
+ * 请求某个成员失败后，在retryIntervalMillis内认为它不可用
+ */
+public class ClusterNode implements Closeable {
+
+    private final ClusterTransport transport;
+    private final String localMember;
+    private final List<String> members;
+    private final List<String> peers;
+    private final ConsistentHashRing ring;
+    private final long retryIntervalMillis;
+    private final Map<String, Long> unavailableUntil = new ConcurrentHashMap<>();
+    private final ClusterTransport.MessageHandler[] handlers = new ClusterTransport.MessageHandler[256];
+
+    /**
+     * @param transport 传输，本地地址必须在成员列表中
+     * @param members 所有成员的地址，包括本节点
+     */
+    public ClusterNode(ClusterTransport transport, Collection<String> members) {
+        this(transport, members, 10000);
+    }
+
+    /**
+     * @param transport 传输，本地地址必须在成员列表中
+     * @param members 所有成员的地址，包括本节点
+     * @param retryIntervalMillis 请求失败的成员多久之后再尝试
+     */
+    public ClusterNode(ClusterTransport transport, Collection<String> members, long retryIntervalMillis) {
+        this.transport = transport;
+        this.retryIntervalMillis = retryIntervalMillis;
+        this.localMember = transport.getLocalAddress();
+        if(!members.contains(localMember)) {
+            throw new IllegalArgumentException("Local address " + localMember + " is not a member of " + members);
+        }
+        this.members = Collections.unmodifiableList(new ArrayList<>(members));
+        List<String> others = new ArrayList<>(members);
+        others.remove(localMember);
+        this.peers = Collections.unmodifiableList(others);
+        this.ring = new ConsistentHashRing(members, 128);
+    }
+
+    /**
+     * 注册处理器后再启动
+     */
+    public synchronized void registerHandler(byte type, ClusterTransport.MessageHandler handler) {
+        if(handlers[type & 0xff] != null) {
+            throw new IllegalStateException("Handler already registered for " + type);
+        }
+        handlers[type & 0xff] = handler;
+    }
+
+    public void start() throws IOException {
+        transport.start(members, this::dispatch);
+    }
+
+    private byte[] dispatch(byte[] message) throws IOException {
+        if(message.length == 0) {
+            throw new IOException("Empty message");
+        }
+        ClusterTransport.MessageHandler handler = handlers[message[0] & 0xff];
+        if(handler == null) {
+            throw new IOException("No handler for message type " + message[0]);
+        }
+        byte[] payload = new byte[message.length - 1];
+        System.arraycopy(message, 1, payload, 0, payload.length);
+        return handler.handle(payload);
+    }
+
+    /**
+     * 向一个成员发送消息并等待响应
+     */
+    public byte[] request(String member, byte type, byte[] payload) throws IOException {
+        byte[] message = new byte[payload.length + 1];
+        message[0] = type;
+        System.arraycopy(payload, 0, message, 1, payload.length);
+        try {
+            byte[] response = transport.request(member, message);
+            unavailableUntil.remove(member);
+            return response;
+        } catch (IOException e) {
+            unavailableUntil.put(member, System.currentTimeMillis() + retryIntervalMillis);
+            throw e;
+        }
+    }
+
+    /**
+     * @return 最近请求失败、还没到重试时间时返回false
+     */
+    public boolean isAvailable(String member) {
+        Long until = unavailableUntil.get(member);
+        if(until == null) {
+            return true;
+        }
+        if(System.currentTimeMillis() >= until) {
+            unavailableUntil.remove(member, until);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return 负责该key的成员
+     */
+    public String ownerOf(String key) {
+        return ring.owner(key);
+    }
+
+    public boolean isLocal(String member) {
+        return localMember.equals(member);
+    }
+
+    public String getLocalMember() {
+        return localMember;
+    }
+
+    /**
+     * @return 除本节点以外的成员
+     */
+    public List<String> getPeers() {
+        return peers;
+    }
+
+    @Override
+    public void close() throws IOException {
+        transport.close();
+    }
+}
@@ -0,0 +1,286 @@
+package com.github.httpproxy.proxy.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 按固定时间窗口计数的限流器，计数在集群中近似汇总。
+ *
+ * 每个节点只增加自己的计数，每个key保存各成员在当前窗口的计数，估计值为它们的和。
+ * 节点定期把计数发给随机的几个成员，接收方按成员取最大值合并，
+ * 因此计数可以经过其他节点间接传播，单个节点不可达时不影响其余节点。
+ * 每个key在变化时得到递增的版本号，发给一个成员的只有上次成功发给它之后变化的key，
+ * 每帧最多{@link #MAX_KEYS_PER_FRAME}个，其余留到下一轮。
+ * 汇总有一个传播周期的延迟，集群总量可能略超过限制
+ */
+public class ClusterRateLimiter implements Closeable {
+
+    public static final byte GOSSIP = 'G';
+
+    /**
+     * 每帧最多发送的key数
+     */
+    public static final int MAX_KEYS_PER_FRAME = 1000;
+
+    private static final Logger log = Logger.getLogger(ClusterRateLimiter.class.getName());
+
+    private final ClusterNode node;
+    private final String localMember;
+    private final long limit;
+    private final long windowMillis;
+    private final int fanout;
+    private final AtomicReference<Window> current = new AtomicReference<>();
+    private final ScheduledExecutorService gossiper;
+
+    /**
+     * @param node 集群节点，为null时只在本节点计数
+     * @param limit 每个窗口内每个key允许的请求数
+     * @param windowMillis 窗口长度
+     * @param gossipIntervalMillis 发送计数的间隔
+     * @param fanout 每次发送给几个成员
+     */
+    public ClusterRateLimiter(ClusterNode node, long limit, long windowMillis, long gossipIntervalMillis,
+                              int fanout) {
+        this.node = node;
+        this.localMember = node != null ? node.getLocalMember() : "";
+        this.limit = limit;
+        this.windowMillis = windowMillis;
+        this.fanout = fanout;
+        if(node != null && !node.getPeers().isEmpty()) {
+            node.registerHandler(GOSSIP, this::receive);
+            gossiper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "proxy-cluster-gossip");
+                thread.setDaemon(true);
+                return thread;
+            });
+            gossiper.scheduleWithFixedDelay(this::gossip, gossipIntervalMillis, gossipIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            gossiper = null;
+        }
+    }
+
+    /**
+     * 集群计数未达到限制时计入本次请求
+     * @return 被限流时返回false
+     */
+    public boolean tryAcquire(String key) {
+        Window window = window();
+        Map<String, AtomicLong> counts = window.counts(key);
+        if(sum(counts) >= limit) {
+            return false;
+        }
+        counts.computeIfAbsent(localMember, m -> new AtomicLong()).incrementAndGet();
+        window.changed(key);
+        return true;
+    }
+
+    /**
+     * @return 当前窗口内集群对该key的计数估计
+     */
+    public long estimate(String key) {
+        Map<String, AtomicLong> counts = window().counts.get(key);
+        return counts != null ? sum(counts) : 0;
+    }
+
+    /**
+     * @return 当前窗口剩余的毫秒数
+     */
+    public long getWindowRemainingMillis() {
+        return windowMillis - System.currentTimeMillis() % windowMillis;
+    }
+
+    private static long sum(Map<String, AtomicLong> counts) {
+        long total = 0;
+        for(AtomicLong count : counts.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    private Window window() {
+        long id = System.currentTimeMillis() / windowMillis;
+        Window window = current.get();
+        while (window == null || window.id < id) {
+            Window next = new Window(id);
+            if(current.compareAndSet(window, next)) {
+                return next;
+            }
+            window = current.get();
+        }
+        return window;
+    }
+
+    private void gossip() {
+        try {
+            Window window = window();
+            if(window.versions.isEmpty()) {
+                return;
+            }
+            List<String> peers = new ArrayList<>();
+            for(String peer : node.getPeers()) {
+                if(node.isAvailable(peer)) {
+                    peers.add(peer);
+                }
+            }
+            Collections.shuffle(peers, ThreadLocalRandom.current());
+            for(String peer : peers.subList(0, Math.min(fanout, peers.size()))) {
+                Long sent = window.sent.get(peer);
+                List<Map.Entry<String, Long>> changed = changedSince(window, sent != null ? sent : 0);
+                if(changed.isEmpty()) {
+                    continue;
+                }
+                try {
+                    node.request(peer, GOSSIP, encode(window, changed));
+                    // 失败时下一轮重新发送
+                    window.sent.put(peer, changed.get(changed.size() - 1).getValue());
+                } catch (IOException e) {
+                    log.log(Level.FINE, "Gossip to " + peer + " failed", e);
+                }
+            }
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "Gossip failed", e);
+        }
+    }
+
+    /**
+     * @return 版本大于since的key，按版本从小到大排列，最多MAX_KEYS_PER_FRAME个
+     */
+    private static List<Map.Entry<String, Long>> changedSince(Window window, long since) {
+        List<Map.Entry<String, Long>> changed = new ArrayList<>();
+        // 等已经取得版本号的更新写入，否则可能跳过比本帧最大版本小的key
+        window.versionLock.writeLock().lock();
+        try {
+            for(Map.Entry<String, Long> entry : window.versions.entrySet()) {
+                if(entry.getValue() > since) {
+                    changed.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+                }
+            }
+        } finally {
+            window.versionLock.writeLock().unlock();
+        }
+        changed.sort(Map.Entry.comparingByValue());
+        return changed.size() > MAX_KEYS_PER_FRAME ? changed.subList(0, MAX_KEYS_PER_FRAME) : changed;
+    }
+
+    private static byte[] encode(Window window, List<Map.Entry<String, Long>> keys) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(window.id);
+        out.writeInt(keys.size());
+        for(Map.Entry<String, Long> key : keys) {
+            // 计数可能在写出时增加，先复制，保证写出的条数和数量一致。
+            // 版本在计数之后更新，这里读到的计数不会比版本旧
+            Map<String, Long> counts = new HashMap<>();
+            for(Map.Entry<String, AtomicLong> count : window.counts(key.getKey()).entrySet()) {
+                counts.put(count.getKey(), count.getValue().get());
+            }
+            out.writeUTF(key.getKey());
+            out.writeInt(counts.size());
+            for(Map.Entry<String, Long> count : counts.entrySet()) {
+                out.writeUTF(count.getKey());
+                out.writeLong(count.getValue());
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private byte[] receive(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        long id = in.readLong();
+        Window window = window();
+        // 时钟偏差导致的其他窗口的计数直接丢弃
+        if(id != window.id) {
+            return new byte[0];
+        }
+        int keys = in.readInt();
+        for(int i = 0; i < keys; i++) {
+            String key = in.readUTF();
+            Map<String, AtomicLong> counts = window.counts(key);
+            boolean changed = false;
+            int members = in.readInt();
+            for(int j = 0; j < members; j++) {
+                String member = in.readUTF();
+                long value = in.readLong();
+                // 本节点的计数以本地为准
+                if(!member.equals(localMember)) {
+                    AtomicLong count = counts.computeIfAbsent(member, m -> new AtomicLong());
+                    long known;
+                    while ((known = count.get()) < value) {
+                        if(count.compareAndSet(known, value)) {
+                            changed = true;
+                            break;
+                        }
+                    }
+                }
+            }
+            if(changed) {
+                // 转发给其他成员
+                window.changed(key);
+            }
+        }
+        return new byte[0];
+    }
+
+    @Override
+    public void close() {
+        if(gossiper != null) {
+            gossiper.shutdownNow();
+        }
+    }
+
+    private static final class Window {
+
+        final long id;
+        final Map<String, Map<String, AtomicLong>> counts = new ConcurrentHashMap<>();
+        /**
+         * 每个key最后一次变化时的版本
+         */
+        final Map<String, Long> versions = new ConcurrentHashMap<>();
+        /**
+         * 已经成功发给每个成员的最大版本
+         */
+        final Map<String, Long> sent = new ConcurrentHashMap<>();
+        final AtomicLong clock = new AtomicLong();
+        final ReadWriteLock versionLock = new ReentrantReadWriteLock();
+
+        Window(long id) {
+            this.id = id;
+        }
+
+        Map<String, AtomicLong> counts(String key) {
+            return counts.computeIfAbsent(key, k -> new ConcurrentHashMap<>());
+        }
+
+        void changed(String key) {
+            versionLock.readLock().lock();
+            try {
+                versions.merge(key, clock.incrementAndGet(), Math::max);
+            } finally {
+                versionLock.readLock().unlock();
+            }
+        }
+    }
+}
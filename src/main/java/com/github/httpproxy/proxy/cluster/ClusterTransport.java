@@ -0,0 +1,37 @@
+package com.github.httpproxy.proxy.cluster;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * 集群节点之间的请求/响应传输。地址为"host:port"形式，由实现解释
+ */
+public interface ClusterTransport extends Closeable {
+
+    /**
+     * @return 本节点的地址，其他节点用它访问本节点
+     */
+    String getLocalAddress();
+
+    /**
+     * 开始接收其他节点的消息。传输本身不做认证，只接受来自members的连接，
+     * 集群端口必须位于可信网络中
+     * @param members 所有成员的地址
+     */
+    void start(Collection<String> members, MessageHandler handler) throws IOException;
+
+    /**
+     * 向一个节点发送消息并等待响应
+     * @throws IOException 节点不可达或超时
+     */
+    byte[] request(String address, byte[] message) throws IOException;
+
+    interface MessageHandler {
+
+        /**
+         * @return 返回给发送方的响应，不能为null
+         */
+        byte[] handle(byte[] message) throws IOException;
+    }
+}
@@ -0,0 +1,53 @@
+package com.github.httpproxy.proxy.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 一致性哈希环，每个成员放置多个虚拟节点，成员增减时只有少量key换主。
+ * 哈希只依赖key和成员地址，所有节点对同一个key得到同一个成员
+ */
+public class ConsistentHashRing {
+
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    /**
+     * @param members 成员地址
+     * @param virtualNodes 每个成员的虚拟节点数
+     */
+    public ConsistentHashRing(Collection<String> members, int virtualNodes) {
+        if(members.isEmpty()) {
+            throw new IllegalArgumentException("No members");
+        }
+        for(String member : members) {
+            for(int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(member + "#" + i), member);
+            }
+        }
+    }
+
+    /**
+     * @return 负责该key的成员
+     */
+    public String owner(String key) {
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    // FNV-1a，再用MurmurHash3的finalizer打散
+    static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for(byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,185 @@
+package com.github.httpproxy.proxy.cluster;
+
+import com.github.httpproxy.proxy.range.ObjectMetadata;
+import com.github.httpproxy.proxy.range.RangeObjectStore;
+import com.github.httpproxy.proxy.range.SegmentSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 在集群中按一致性哈希分片的范围缓存：每个对象只由负责它的成员从后端获取并缓存，
+ * 其他成员按分段向它请求，因此集群的缓存容量是各节点之和，而不是每个节点各存一份
+ */
+public class PeerRangeStore {
+
+    public static final byte RANGE = 'R';
+
+    private static final byte NOT_CACHEABLE = 0;
+    private static final byte OK = 1;
+
+    private final ClusterNode node;
+    private final RangeObjectStore localStore;
+    private final int segmentSize;
+    private final OriginSourceFactory originSources;
+
+    /**
+     * 负责对象的成员据此从后端获取分段
+     */
+    public interface OriginSourceFactory {
+
+        /**
+         * @param key 对象的key
+         * @param headers 请求方转发的请求头，依次为名称和值
+         * @return 不允许该key或这些请求头时返回null
+         */
+        SegmentSource create(String key, List<String> headers) throws IOException;
+    }
+
+    public PeerRangeStore(ClusterNode node, RangeObjectStore localStore, int segmentSize,
+                          OriginSourceFactory originSources) {
+        this.node = node;
+        this.localStore = localStore;
+        this.segmentSize = segmentSize;
+        this.originSources = originSources;
+        node.registerHandler(RANGE, this::serve);
+    }
+
+    /**
+     * @return 负责该key的成员，本节点负责或负责的成员暂时不可用时返回null
+     */
+    public String remoteOwner(String key) {
+        String owner = node.ownerOf(key);
+        return node.isLocal(owner) || !node.isAvailable(owner) ? null : owner;
+    }
+
+    /**
+     * 向负责的成员获取对象元数据
+     * @return 后端不支持范围请求或不允许缓存时返回null
+     */
+    public ObjectMetadata getMetadata(String owner, String key, List<String> headers) throws IOException {
+        return fetch(owner, key, 0, 0, headers, null);
+    }
+
+    /**
+     * 按分段向负责的成员获取对象的[start, end]并写到输出流
+     * @throws IOException 对象在传输过程中发生变化
+     */
+    public void copyRange(String owner, String key, ObjectMetadata meta, long start, long end,
+                          List<String> headers, OutputStream out) throws IOException {
+        long position = start;
+        while (position <= end) {
+            int length = (int) (Math.min((position / segmentSize + 1) * segmentSize - 1, end) - position + 1);
+            ObjectMetadata current = fetch(owner, key, position, length, headers, out);
+            if(current == null || !meta.sameVersion(current)) {
+                throw new IOException("Upstream object changed while serving range: " + key);
+            }
+            position += length;
+        }
+    }
+
+    private ObjectMetadata fetch(String owner, String key, long start, int length, List<String> headers,
+                                 OutputStream out) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream request = new DataOutputStream(bytes);
+        request.writeUTF(key);
+        request.writeLong(start);
+        request.writeInt(length);
+        request.writeInt(headers.size());
+        for(String header : headers) {
+            request.writeUTF(header);
+        }
+        request.flush();
+
+        DataInputStream response = new DataInputStream(
+                new ByteArrayInputStream(node.request(owner, RANGE, bytes.toByteArray())));
+        if(response.readByte() != OK) {
+            return null;
+        }
+        long objectLength = response.readLong();
+        String etag = readNullable(response);
+        String lastModified = readNullable(response);
+        String contentType = readNullable(response);
+        int headerCount = response.readInt();
+        List<String> representationHeaders = new ArrayList<>(headerCount);
+        for(int i = 0; i < headerCount; i++) {
+            representationHeaders.add(response.readUTF());
+        }
+        long maxAgeMillis = response.readLong();
+        boolean shared = response.readBoolean();
+        ObjectMetadata meta = new ObjectMetadata(objectLength, etag, lastModified, contentType,
+                representationHeaders, maxAgeMillis, shared);
+        int bodyLength = response.readInt();
+        if(bodyLength != length) {
+            // 对象长度已经变化
+            return null;
+        }
+        if(out != null && bodyLength > 0) {
+            byte[] body = new byte[bodyLength];
+            response.readFully(body);
+            out.write(body);
+        }
+        return meta;
+    }
+
+    // 作为负责的成员处理其他成员的请求
+    private byte[] serve(byte[] payload) throws IOException {
+        DataInputStream request = new DataInputStream(new ByteArrayInputStream(payload));
+        String key = request.readUTF();
+        long start = request.readLong();
+        int length = request.readInt();
+        int headerCount = request.readInt();
+        List<String> headers = new ArrayList<>(headerCount);
+        for(int i = 0; i < headerCount; i++) {
+            headers.add(request.readUTF());
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(length + 256);
+        DataOutputStream response = new DataOutputStream(bytes);
+        SegmentSource source = originSources.create(key, headers);
+        ObjectMetadata meta = source != null ? localStore.getMetadata(key, source) : null;
+        if(meta == null) {
+            response.writeByte(NOT_CACHEABLE);
+            response.flush();
+            return bytes.toByteArray();
+        }
+        response.writeByte(OK);
+        response.writeLong(meta.getLength());
+        writeNullable(response, meta.getEtag());
+        writeNullable(response, meta.getLastModified());
+        writeNullable(response, meta.getContentType());
+        response.writeInt(meta.getHeaders().size());
+        for(String header : meta.getHeaders()) {
+            response.writeUTF(header);
+        }
+        response.writeLong(meta.getMaxAgeMillis());
+        response.writeBoolean(meta.isShared());
+        long end = Math.min(start + length, meta.getLength()) - 1;
+        if(length > 0 && end >= start) {
+            response.writeInt((int) (end - start + 1));
+            response.flush();
+            localStore.copyRange(key, meta, start, end, source, bytes);
+        } else {
+            response.writeInt(0);
+            response.flush();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if(value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,270 @@
+package com.github.httpproxy.proxy.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于TCP的传输：每个消息是4字节长度加内容，一个连接上依次处理请求。
+ * 发送方按节点保留空闲连接复用
+ */
+public class TcpClusterTransport implements ClusterTransport {
+
+    private static final int MAX_FRAME = 64 * 1024 * 1024;
+
+    private final ServerSocket serverSocket;
+    private final String localAddress;
+    private final int timeoutMillis;
+    private final ExecutorService workers;
+    private final Map<String, Queue<Connection>> idle = new ConcurrentHashMap<>();
+    private final Set<Socket> accepted = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    /**
+     * @param bindAddress 监听地址"host:port"，端口为0时由系统分配
+     * @param timeoutMillis 连接和等待响应的超时时间
+     */
+    public TcpClusterTransport(String bindAddress, int timeoutMillis) throws IOException {
+        InetSocketAddress bind = parseAddress(bindAddress);
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(bind);
+        this.localAddress = bind.getHostString() + ":" + serverSocket.getLocalPort();
+        this.timeoutMillis = timeoutMillis;
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "proxy-cluster-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    static InetSocketAddress parseAddress(String address) {
+        int colon = address.lastIndexOf(':');
+        if(colon < 0) {
+            throw new IllegalArgumentException("Expected host:port but got " + address);
+        }
+        String host = address.substring(0, colon);
+        int port = Integer.parseInt(address.substring(colon + 1));
+        return host.isEmpty() ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+                : new InetSocketAddress(host, port);
+    }
+
+    @Override
+    public String getLocalAddress() {
+        return localAddress;
+    }
+
+    @Override
+    public void start(Collection<String> members, final MessageHandler handler) throws IOException {
+        // 按IP比较，发送方使用临时端口
+        final Set<InetAddress> allowed = new HashSet<>();
+        for(String member : members) {
+            InetSocketAddress address = parseAddress(member);
+            if(address.isUnresolved()) {
+                throw new IOException("Cannot resolve cluster member " + member);
+            }
+            allowed.add(address.getAddress());
+        }
+        workers.execute(() -> {
+            while (!closed) {
+                try {
+                    final Socket socket = serverSocket.accept();
+                    if(!allowed.contains(socket.getInetAddress())) {
+                        closeQuietly(socket);
+                        continue;
+                    }
+                    accepted.add(socket);
+                    workers.execute(() -> serve(socket, handler));
+                } catch (IOException e) {
+                    // 关闭时accept抛出异常
+                }
+            }
+        });
+    }
+
+    private void serve(Socket socket, MessageHandler handler) {
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            byte[] message;
+            while ((message = readFrame(in, true)) != null) {
+                writeFrame(out, handler.handle(message));
+            }
+        } catch (IOException e) {
+            // 发送方断开或处理失败，关闭连接，发送方会收到异常
+        } finally {
+            accepted.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    @Override
+    public byte[] request(String address, byte[] message) throws IOException {
+        if(closed) {
+            throw new IOException("Transport closed");
+        }
+        Queue<Connection> pool = idle.computeIfAbsent(address, a -> new ConcurrentLinkedQueue<>());
+        Connection connection = pool.poll();
+        if(connection != null) {
+            try {
+                byte[] response = connection.exchange(message);
+                release(pool, connection);
+                return response;
+            } catch (StaleConnectionException e) {
+                // 空闲连接已经被对方关闭，对方没有处理这个请求，用新连接重试一次
+                closeQuietly(connection.socket);
+            } catch (IOException e) {
+                // 超时或读取响应时出错，对方可能已经处理了请求，不重试
+                closeQuietly(connection.socket);
+                throw e;
+            }
+        }
+        connection = connect(address);
+        try {
+            byte[] response = connection.exchange(message);
+            release(pool, connection);
+            return response;
+        } catch (IOException e) {
+            closeQuietly(connection.socket);
+            throw e;
+        }
+    }
+
+    private Connection connect(String address) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(parseAddress(address), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            socket.setTcpNoDelay(true);
+            return new Connection(socket);
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+    }
+
+    private void release(Queue<Connection> pool, Connection connection) {
+        pool.offer(connection);
+        if(closed) {
+            closeIdle();
+        }
+    }
+
+    private static byte[] readFrame(DataInputStream in, boolean eofAllowed) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            if(eofAllowed) {
+                return null;
+            }
+            throw e;
+        }
+        return readFrameBody(in, length);
+    }
+
+    private static byte[] readFrameBody(DataInputStream in, int length) throws IOException {
+        if(length < 0 || length > MAX_FRAME) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return frame;
+    }
+
+    private static void writeFrame(DataOutputStream out, byte[] frame) throws IOException {
+        out.writeInt(frame.length);
+        out.write(frame);
+        out.flush();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // 忽略
+        }
+    }
+
+    private void closeIdle() {
+        for(Queue<Connection> pool : idle.values()) {
+            Connection connection;
+            while ((connection = pool.poll()) != null) {
+                closeQuietly(connection.socket);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        closeIdle();
+        for(Socket socket : accepted) {
+            closeQuietly(socket);
+        }
+        workers.shutdownNow();
+    }
+
+    private static final class Connection {
+
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        /**
+         * @throws StaleConnectionException 请求没有发出，或者收到任何响应之前连接被对方关闭
+         */
+        byte[] exchange(byte[] message) throws IOException {
+            if(socket.isClosed()) {
+                throw new StaleConnectionException(new SocketException("Socket closed"));
+            }
+            try {
+                writeFrame(out, message);
+            } catch (IOException e) {
+                throw new StaleConnectionException(e);
+            }
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException | SocketException e) {
+                // 读超时是SocketTimeoutException，不属于这里
+                throw new StaleConnectionException(e);
+            }
+            return readFrameBody(in, length);
+        }
+    }
+
+    private static final class StaleConnectionException extends IOException {
+
+        StaleConnectionException(IOException cause) {
+            super(cause.toString(), cause);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.github.httpproxy.proxy.dns;
+
+import org.apache.http.conn.DnsResolver;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * 带缓存的DNS解析器。
+ * 第一次解析某个主机时同步解析，之后在TTL到期之前由后台线程刷新，
+ * 刷新期间和刷新失败时继续使用旧地址(最多到maxStaleMillis)，DNS变慢不会增加建立连接的延迟。
+ * 每次返回的地址列表轮转起始位置，新连接分散到所有地址上
+ */
+public class CachingDnsResolver implements DnsResolver, Closeable {
+
+    private static final class Entry {
+        final InetAddress[] addresses;
+        final long resolvedAt;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+        final AtomicInteger next = new AtomicInteger();
+
+        Entry(InetAddress[] addresses, long resolvedAt) {
+            this.addresses = addresses;
+            this.resolvedAt = resolvedAt;
+        }
+    }
+
+    private final DnsResolver delegate;
+    private final long ttlMillis;
+    private final long refreshAfterMillis;
+    private final long maxStaleMillis;
+    private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<>();
+    private final ExecutorService refresher;
+    private final LongSupplier clock;
+
+    /**
+     * @param delegate 实际执行解析的解析器
+     * @param ttlMillis 缓存有效期，到期前(80%时)开始后台刷新
+     * @param maxStaleMillis 刷新失败时继续使用过期地址的最长时间
+     */
+    public CachingDnsResolver(DnsResolver delegate, long ttlMillis, long maxStaleMillis) {
+        this(delegate, ttlMillis, maxStaleMillis, System::currentTimeMillis);
+    }
+
+    // 测试用，可以指定时钟
+    CachingDnsResolver(DnsResolver delegate, long ttlMillis, long maxStaleMillis, LongSupplier clock) {
+        this.delegate = delegate;
+        this.clock = clock;
+        this.ttlMillis = ttlMillis;
+        this.refreshAfterMillis = ttlMillis * 4 / 5;
+        this.maxStaleMillis = maxStaleMillis;
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), r -> {
+                    Thread thread = new Thread(r, "proxy-dns-refresh");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        this.refresher = executor;
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        long now = clock.getAsLong();
+        Entry entry = cache.get(host);
+        if(entry == null || now - entry.resolvedAt >= ttlMillis + maxStaleMillis) {
+            // 没有可用的缓存，只能同步解析
+            entry = new Entry(delegate.resolve(host), now);
+            cache.put(host, entry);
+        } else if(now - entry.resolvedAt >= refreshAfterMillis && entry.refreshing.compareAndSet(false, true)) {
+            scheduleRefresh(host, entry);
+        }
+        return rotate(entry);
+    }
+
+    private void scheduleRefresh(final String host, final Entry entry) {
+        try {
+            refresher.execute(() -> {
+                try {
+                    cache.replace(host, entry, new Entry(delegate.resolve(host), clock.getAsLong()));
+                } catch (UnknownHostException | RuntimeException e) {
+                    // 继续使用旧地址，下一次解析时重试
+                    entry.refreshing.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            entry.refreshing.set(false);
+        }
+    }
+
+    private static InetAddress[] rotate(Entry entry) {
+        InetAddress[] addresses = entry.addresses;
+        int n = addresses.length;
+        if(n < 2) {
+            return addresses.clone();
+        }
+        int start = (entry.next.getAndIncrement() & Integer.MAX_VALUE) % n;
+        InetAddress[] rotated = new InetAddress[n];
+        for(int i = 0; i < n; i++) {
+            rotated[i] = addresses[(start + i) % n];
+        }
+        return rotated;
+    }
+
+    /**
+     * 删除缓存的主机地址，下一次解析时同步解析
+     */
+    public void invalidate(String host) {
+        cache.remove(host);
+    }
+
+    @Override
+    public void close() {
+        refresher.shutdownNow();
+    }
+}
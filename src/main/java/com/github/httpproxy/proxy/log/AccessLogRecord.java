@@ -0,0 +1,140 @@
+package com.github.httpproxy.proxy.log;
+
+/**
+ * 一次代理请求的访问日志记录。
+ * 请求处理过程中逐步填充，完成后交给{@link AsyncAccessLogWriter}异步写出
+ */
+public class AccessLogRecord {
+
+    /**
+     * 请求开始时间 (epoch millis)
+     */
+    private final long timestamp;
+    /**
+     * 请求开始时间，用于计算各阶段耗时
+     */
+    private final long startNanos;
+    private String method;
+    private String requestUri;
+    private String targetUri;
+    private String remoteAddr;
+    private String upstreamAddress;
+    private int status;
+    private long bytesSent;
+    /**
+     * 从开始到收到后端响应头的耗时(连接池租用、建立连接、发送请求、等待首字节)
+     */
+    private long upstreamNanos = -1;
+    /**
+     * 向客户端复制响应体的耗时
+     */
+    private long responseNanos = -1;
+    private long totalNanos = -1;
+    private String error;
+
+    public AccessLogRecord() {
+        this.timestamp = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * 标记收到后端响应头
+     */
+    public void markUpstreamResponse() {
+        upstreamNanos = System.nanoTime() - startNanos;
+    }
+
+    /**
+     * 标记请求处理结束
+     */
+    public void markComplete() {
+        totalNanos = System.nanoTime() - startNanos;
+        if(upstreamNanos >= 0) {
+            responseNanos = totalNanos - upstreamNanos;
+        }
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public void setMethod(String method) {
+        this.method = method;
+    }
+
+    public String getRequestUri() {
+        return requestUri;
+    }
+
+    public void setRequestUri(String requestUri) {
+        this.requestUri = requestUri;
+    }
+
+    public String getTargetUri() {
+        return targetUri;
+    }
+
+    public void setTargetUri(String targetUri) {
+        this.targetUri = targetUri;
+    }
+
+    public String getRemoteAddr() {
+        return remoteAddr;
+    }
+
+    public void setRemoteAddr(String remoteAddr) {
+        this.remoteAddr = remoteAddr;
+    }
+
+    public String getUpstreamAddress() {
+        return upstreamAddress;
+    }
+
+    public void setUpstreamAddress(String upstreamAddress) {
+        this.upstreamAddress = upstreamAddress;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public void addBytesSent(long bytes) {
+        this.bytesSent += bytes;
+    }
+
+    public long getUpstreamNanos() {
+        return upstreamNanos;
+    }
+
+    public long getResponseNanos() {
+        return responseNanos;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+}
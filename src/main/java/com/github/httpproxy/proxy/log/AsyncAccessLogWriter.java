@@ -0,0 +1,253 @@
+package com.github.httpproxy.proxy.log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步访问日志写出器。
+ * 请求线程通过{@link #append(AccessLogRecord)}把记录放入无锁环形缓冲区，
+ * 后台线程批量取出、格式化为JSON行并写入滚动文件。
+ * 缓冲区满时丢弃记录并计数，不会阻塞请求线程。
+ * 写文件失败时丢失当前记录并单独计数，之后暂停写出一段时间再重试，期间新记录留在缓冲区中
+ */
+public class AsyncAccessLogWriter implements Closeable {
+
+    /**
+     * 缓冲区空闲时后台线程的休眠时间
+     */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    /**
+     * 写失败后暂停写出的时间，连续失败时加倍
+     */
+    private static final long MIN_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final MpscRingBuffer<AccessLogRecord> buffer;
+    private final RollingFileOutput output;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final Thread worker;
+    private volatile boolean running = true;
+    // 以下字段只由写线程访问
+    private final StringBuilder line = new StringBuilder(512);
+    private long reportedDropped;
+    private long backoffNanos;
+    private long retryAt;
+
+    /**
+     * @param output 日志输出
+     * @param capacity 环形缓冲区容量
+     * @param batchSize 每批最多写出的记录数
+     * @param flushIntervalMillis 有未刷新数据时的最长刷新间隔
+     */
+    public AsyncAccessLogWriter(RollingFileOutput output, int capacity, int batchSize, long flushIntervalMillis) {
+        this.buffer = new MpscRingBuffer<>(capacity);
+        this.output = output;
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.worker = new Thread(this::run, "proxy-access-log");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * 提交一条记录
+     * @return 缓冲区已满、记录被丢弃时返回false
+     */
+    public boolean append(AccessLogRecord record) {
+        if(!running || !buffer.offer(record)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 因缓冲区满或已关闭而被丢弃的记录数
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * 因写文件失败而丢失的记录数
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * 已写出的记录数
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    private void run() {
+        long lastFlush = System.nanoTime();
+        boolean dirty = false;
+        while ((running || buffer.size() > 0) && !Thread.currentThread().isInterrupted()) {
+            if(running && backoffNanos > 0) {
+                long wait = retryAt - System.nanoTime();
+                if(wait > 0) {
+                    LockSupport.parkNanos(this, wait);
+                    continue;
+                }
+            }
+            int n = drainBatch();
+            if(n > 0) {
+                dirty = true;
+            }
+            long now = System.nanoTime();
+            if(dirty && (n == 0 || now - lastFlush >= flushIntervalNanos)) {
+                flush();
+                dirty = false;
+                lastFlush = now;
+            }
+            if(n == 0) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+        }
+        if(!Thread.currentThread().isInterrupted()) {
+            drainBatch();
+        }
+        flush();
+    }
+
+    private int drainBatch() {
+        int n = 0;
+        AccessLogRecord record;
+        while (n < batchSize && (record = buffer.poll()) != null) {
+            n++;
+            if(write(format(record))) {
+                written.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+                // 剩余记录留在缓冲区，等待重试
+                return n;
+            }
+        }
+        long droppedNow = dropped.get();
+        if(droppedNow != reportedDropped) {
+            line.setLength(0);
+            line.append("{\"type\":\"dropped\",\"ts\":").append(System.currentTimeMillis())
+                    .append(",\"count\":").append(droppedNow - reportedDropped)
+                    .append(",\"total\":").append(droppedNow).append("}\n");
+            // 失败时下一批再报告
+            if(write(line)) {
+                reportedDropped = droppedNow;
+            }
+        }
+        return n;
+    }
+
+    private boolean write(CharSequence s) {
+        byte[] bytes = s.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            output.write(bytes, 0, bytes.length);
+            backoffNanos = 0;
+            return true;
+        } catch (IOException e) {
+            // 写日志失败不能影响代理，暂停一段时间再写
+            backoffNanos = backoffNanos == 0 ? MIN_BACKOFF_NANOS : Math.min(backoffNanos * 2, MAX_BACKOFF_NANOS);
+            retryAt = System.nanoTime() + backoffNanos;
+            return false;
+        }
+    }
+
+    private void flush() {
+        try {
+            output.flush();
+        } catch (IOException ignored) {
+            // 下一批会重试
+        }
+    }
+
+    /**
+     * 格式化为一行JSON
+     */
+    protected CharSequence format(AccessLogRecord r) {
+        StringBuilder sb = line;
+        sb.setLength(0);
+        sb.append("{\"ts\":").append(r.getTimestamp());
+        appendString(sb, "method", r.getMethod());
+        appendString(sb, "uri", r.getRequestUri());
+        appendString(sb, "target", r.getTargetUri());
+        appendString(sb, "remote", r.getRemoteAddr());
+        appendString(sb, "upstream", r.getUpstreamAddress());
+        sb.append(",\"status\":").append(r.getStatus());
+        sb.append(",\"bytes\":").append(r.getBytesSent());
+        appendMicros(sb, "upstreamUs", r.getUpstreamNanos());
+        appendMicros(sb, "responseUs", r.getResponseNanos());
+        appendMicros(sb, "totalUs", r.getTotalNanos());
+        appendString(sb, "error", r.getError());
+        return sb.append("}\n");
+    }
+
+    private static void appendMicros(StringBuilder sb, String name, long nanos) {
+        if(nanos >= 0) {
+            sb.append(",\"").append(name).append("\":").append(nanos / 1000);
+        }
+    }
+
+    private static void appendString(StringBuilder sb, String name, String value) {
+        if(value == null) {
+            return;
+        }
+        sb.append(",\"").append(name).append("\":\"");
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if(c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * 停止接收新记录，写出缓冲区中剩余的记录后关闭文件。
+     * 5秒内没有写完时放弃剩余记录，等写线程退出后再关闭文件
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark(worker);
+        boolean interrupted = false;
+        try {
+            worker.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+        if(worker.isAlive()) {
+            worker.interrupt();
+            while (worker.isAlive()) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        output.close();
+    }
+}
@@ -0,0 +1,30 @@
+package com.github.httpproxy.proxy.log;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 统计写出字节数的输出流，字节数累加到{@link AccessLogRecord}
+ */
+public class CountingOutputStream extends FilterOutputStream {
+
+    private final AccessLogRecord record;
+
+    public CountingOutputStream(OutputStream out, AccessLogRecord record) {
+        super(out);
+        this.record = record;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        record.addBytesSent(1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        record.addBytesSent(len);
+    }
+}
@@ -0,0 +1,93 @@
+package com.github.httpproxy.proxy.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 有界无锁环形缓冲区，多生产者单消费者。
+ * 每个槽位带一个序号(Vyukov算法)，生产者只在tail上CAS，消费者独占head，
+ * 缓冲区满时offer直接返回false，调用方永远不会被阻塞
+ * @param <E> 元素类型
+ */
+public class MpscRingBuffer<E> {
+
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    // 只有消费者线程读写
+    private long head;
+
+    /**
+     * @param capacity 容量，向上取整为2的幂
+     */
+    public MpscRingBuffer(int capacity) {
+        if(capacity < 2) {
+            throw new IllegalArgumentException("capacity must be >= 2: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = size - 1;
+        this.elements = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for(int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * 尝试放入一个元素，可以被任意线程并发调用
+     * @return 缓冲区已满时返回false
+     */
+    public boolean offer(E e) {
+        if(e == null) {
+            throw new NullPointerException();
+        }
+        while (true) {
+            long pos = tail.get();
+            int index = (int) (pos & mask);
+            long seq = sequences.get(index);
+            long diff = seq - pos;
+            if(diff == 0) {
+                if(tail.compareAndSet(pos, pos + 1)) {
+                    elements.lazySet(index, e);
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+            } else if(diff < 0) {
+                // 消费者还没有取走这一圈的元素
+                return false;
+            }
+            // 其他生产者抢先了，重试
+        }
+    }
+
+    /**
+     * 取出一个元素，只能由唯一的消费者线程调用
+     * @return 没有可用元素时返回null
+     */
+    public E poll() {
+        int index = (int) (head & mask);
+        long seq = sequences.get(index);
+        if(seq != head + 1) {
+            return null;
+        }
+        E e = elements.get(index);
+        elements.lazySet(index, null);
+        sequences.set(index, head + mask + 1);
+        head++;
+        return e;
+    }
+
+    /**
+     * 近似的元素数量，仅用于监控
+     */
+    public int size() {
+        long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+}
@@ -0,0 +1,122 @@
+package com.github.httpproxy.proxy.log;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * 按大小和时间滚动的日志文件输出。
+ * 当前文件写满maxBytes或者打开时间超过rollIntervalMillis时，
+ * 重命名为 name.yyyyMMdd-HHmmss[.n] 并打开新文件。重命名失败时继续写原文件，稍后再试。
+ * 只由写线程访问，非线程安全
+ */
+public class RollingFileOutput implements Closeable {
+
+    /**
+     * 滚动失败后再次尝试的间隔
+     */
+    private static final long ROLL_RETRY_MILLIS = 10 * 1000;
+
+    private final File file;
+    private final long maxBytes;
+    private final long rollIntervalMillis;
+
+    private OutputStream out;
+    private long written;
+    private long openedAt;
+    private long rollRetryAt;
+
+    /**
+     * @param file 当前日志文件
+     * @param maxBytes 单个文件最大字节数，小于1表示不按大小滚动
+     * @param rollIntervalMillis 滚动间隔，小于1表示不按时间滚动
+     */
+    public RollingFileOutput(File file, long maxBytes, long rollIntervalMillis) throws IOException {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.rollIntervalMillis = rollIntervalMillis;
+        File parent = file.getAbsoluteFile().getParentFile();
+        if(parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create log directory " + parent);
+        }
+        open();
+    }
+
+    private void open() throws IOException {
+        out = new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024);
+        written = file.length();
+        openedAt = System.currentTimeMillis();
+    }
+
+    public void write(byte[] bytes, int off, int len) throws IOException {
+        if(out == null) {
+            // 上次重新打开失败
+            open();
+        }
+        if(shouldRoll(len)) {
+            try {
+                roll();
+            } catch (IOException e) {
+                if(out == null) {
+                    throw e;
+                }
+                // 已经重新打开原文件，这条记录照常写入
+                rollRetryAt = System.currentTimeMillis() + ROLL_RETRY_MILLIS;
+            }
+        }
+        out.write(bytes, off, len);
+        written += len;
+    }
+
+    private boolean shouldRoll(int len) {
+        if(written == 0 || System.currentTimeMillis() < rollRetryAt) {
+            return false;
+        }
+        if(maxBytes > 0 && written + len > maxBytes) {
+            return true;
+        }
+        return rollIntervalMillis > 0 && System.currentTimeMillis() - openedAt >= rollIntervalMillis;
+    }
+
+    /**
+     * 关闭当前文件，按时间戳重命名后重新打开
+     * @throws IOException 重命名失败时重新打开原文件后抛出
+     */
+    public void roll() throws IOException {
+        OutputStream current = out;
+        out = null;
+        current.close();
+        String suffix = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(openedAt));
+        File rolled = new File(file.getPath() + "." + suffix);
+        for(int i = 1; rolled.exists(); i++) {
+            rolled = new File(file.getPath() + "." + suffix + "." + i);
+        }
+        if(!rename(file, rolled)) {
+            open();
+            throw new IOException("Unable to roll " + file + " to " + rolled);
+        }
+        open();
+    }
+
+    protected boolean rename(File from, File to) {
+        return from.renameTo(to);
+    }
+
+    public void flush() throws IOException {
+        if(out != null) {
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(out != null) {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.github.httpproxy.proxy.mirror;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * 主请求线程向影子请求传递请求体的有界管道。
+ * 写入方(主请求)永远不会等待：空间不足时管道被中止，影子请求随之失败；
+ * 读取方(影子请求)在没有数据时等待，最长等待readTimeoutMillis
+ */
+public class BodyPipe {
+
+    private final byte[] buffer;
+    private final long readTimeoutMillis;
+    private int readPos;
+    private int count;
+    private boolean closed;
+    private boolean aborted;
+
+    public BodyPipe(int capacity, long readTimeoutMillis) {
+        this.buffer = new byte[capacity];
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * 写入数据，不会阻塞
+     * @return 管道已中止或空间不足时返回false，之后的写入都会被忽略
+     */
+    public synchronized boolean write(byte[] b, int off, int len) {
+        if(aborted || closed) {
+            return false;
+        }
+        if(len > buffer.length - count) {
+            abort();
+            return false;
+        }
+        int writePos = (readPos + count) % buffer.length;
+        int first = Math.min(len, buffer.length - writePos);
+        System.arraycopy(b, off, buffer, writePos, first);
+        System.arraycopy(b, off + first, buffer, 0, len - first);
+        count += len;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * 请求体已全部写入
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * 放弃传递，读取方读完已经写入的数据后收到IOException
+     */
+    public synchronized void abort() {
+        aborted = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isAborted() {
+        return aborted;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        long deadline = System.currentTimeMillis() + readTimeoutMillis;
+        while (count == 0 && !closed && !aborted) {
+            long remaining = deadline - System.currentTimeMillis();
+            if(remaining <= 0) {
+                aborted = true;
+                throw new InterruptedIOException("Timed out waiting for mirrored request body");
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for mirrored request body");
+            }
+        }
+        if(count == 0) {
+            if(aborted) {
+                throw new IOException("Mirrored request body aborted");
+            }
+            return -1;
+        }
+        int n = Math.min(len, count);
+        int first = Math.min(n, buffer.length - readPos);
+        System.arraycopy(buffer, readPos, b, off, first);
+        System.arraycopy(buffer, 0, b, off + first, n - first);
+        readPos = (readPos + n) % buffer.length;
+        count -= n;
+        return n;
+    }
+
+    /**
+     * 影子请求读取请求体的输入流
+     */
+    public InputStream getInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                int n = read(one, 0, 1);
+                return n == -1 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if(len == 0) {
+                    return 0;
+                }
+                return BodyPipe.this.read(b, off, len);
+            }
+        };
+    }
+}
@@ -0,0 +1,42 @@
+package com.github.httpproxy.proxy.mirror;
+
+import java.io.InputStream;
+
+/**
+ * 一次被采样镜像的请求，持有请求体管道
+ */
+public class MirrorRequest {
+
+    private final BodyPipe pipe;
+    private final long contentLength;
+
+    MirrorRequest(BodyPipe pipe, long contentLength) {
+        this.pipe = pipe;
+        this.contentLength = contentLength;
+    }
+
+    /**
+     * 包装主请求的请求体，读取时复制给影子请求
+     */
+    public InputStream tee(InputStream in) {
+        return pipe == null ? in : new TeeInputStream(in, pipe, contentLength);
+    }
+
+    BodyPipe getPipe() {
+        return pipe;
+    }
+
+    long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * 主请求处理结束。请求体没有被完整读取时中止影子请求，
+     * 已经完整读取的请求体留在管道中，影子请求可以在之后读完
+     */
+    public void primaryComplete() {
+        if(pipe != null && !pipe.isClosed()) {
+            pipe.abort();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.github.httpproxy.proxy.mirror;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 主请求读取请求体时把读到的字节复制到{@link BodyPipe}，读到结尾或Content-Length指定的长度时关闭管道。
+ * InputStreamEntity按Content-Length读取时不会读到结尾，所以不能只依赖-1
+ */
+public class TeeInputStream extends FilterInputStream {
+
+    private final BodyPipe pipe;
+    private long remaining;
+    private boolean teeing = true;
+
+    /**
+     * @param contentLength 请求体长度，未知为-1
+     */
+    public TeeInputStream(InputStream in, BodyPipe pipe, long contentLength) {
+        super(in);
+        this.pipe = pipe;
+        this.remaining = contentLength;
+        if(contentLength == 0) {
+            pipe.close();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if(b == -1) {
+            pipe.close();
+        } else {
+            if(teeing) {
+                teeing = pipe.write(new byte[]{(byte) b}, 0, 1);
+            }
+            consumed(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if(n == -1) {
+            pipe.close();
+        } else if(n > 0) {
+            if(teeing) {
+                teeing = pipe.write(b, off, n);
+            }
+            consumed(n);
+        }
+        return n;
+    }
+
+    private void consumed(int n) {
+        if(remaining > 0) {
+            remaining -= n;
+            if(remaining <= 0) {
+                pipe.close();
+            }
+        }
+    }
+}
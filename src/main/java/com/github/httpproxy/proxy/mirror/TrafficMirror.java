@@ -0,0 +1,192 @@
+package com.github.httpproxy.proxy.mirror;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.util.EntityUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 把采样的请求复制一份发送到影子目标，响应不读取响应体直接关闭。
+ * 影子请求使用独立的HttpClient(独立连接池)和有上限的线程池执行，
+ * 线程池满时直接放弃镜像，请求体通过{@link BodyPipe}传递，
+ * 影子目标再慢也不会阻塞主请求
+ */
+public class TrafficMirror implements Closeable {
+
+    private final String targetUri;
+    private final HttpHost targetHost;
+    private final HttpClient client;
+    private final double sampleRate;
+    private final int bodyBufferSize;
+    private final long timeoutMillis;
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong mirrored = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param targetUri 影子目标URI
+     * @param targetHost 影子目标主机
+     * @param client 影子请求专用的HttpClient
+     * @param sampleRate 镜像比例 (0.0 - 1.0)
+     * @param maxConcurrency 同时进行的影子请求上限
+     * @param bodyBufferSize 请求体管道容量，影子请求落后超过该值时放弃
+     * @param timeoutMillis 影子请求等待请求体的超时时间
+     */
+    public TrafficMirror(String targetUri, HttpHost targetHost, HttpClient client, double sampleRate,
+                         int maxConcurrency, int bodyBufferSize, long timeoutMillis) {
+        this.targetUri = targetUri;
+        this.targetHost = targetHost;
+        this.client = client;
+        this.sampleRate = sampleRate;
+        this.bodyBufferSize = bodyBufferSize;
+        this.timeoutMillis = timeoutMillis;
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), r -> {
+                    Thread thread = new Thread(r, "proxy-mirror-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 按采样率决定是否镜像该请求
+     * @param hasBody 请求是否带请求体
+     * @param contentLength 请求体长度，未知为-1
+     * @return 不镜像时返回null
+     */
+    public MirrorRequest sample(boolean hasBody, long contentLength) {
+        if(sampleRate <= 0 || (sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate)) {
+            return null;
+        }
+        if(executor.getActiveCount() >= executor.getMaximumPoolSize()) {
+            rejected.incrementAndGet();
+            return null;
+        }
+        BodyPipe pipe = hasBody ? new BodyPipe(bodyBufferSize, timeoutMillis) : null;
+        return new MirrorRequest(pipe, contentLength);
+    }
+
+    /**
+     * 异步发送影子请求
+     * @param mirror {@link #sample}返回的镜像请求
+     * @param proxyRequest 已经复制好请求头的主请求
+     * @param proxyRequestUri 主请求的目标URI
+     * @param primaryTargetUri 主请求的目标根URI，替换为影子目标URI
+     */
+    public void submit(MirrorRequest mirror, HttpRequest proxyRequest, String proxyRequestUri,
+                       String primaryTargetUri) {
+        String uri = proxyRequestUri.startsWith(primaryTargetUri) ?
+                targetUri + proxyRequestUri.substring(primaryTargetUri.length()) : proxyRequestUri;
+        final HttpRequest shadowRequest = newShadowRequest(mirror, proxyRequest, uri);
+        try {
+            executor.execute(() -> execute(mirror, shadowRequest));
+            mirrored.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            if(mirror.getPipe() != null) {
+                mirror.getPipe().abort();
+            }
+        }
+    }
+
+    private HttpRequest newShadowRequest(MirrorRequest mirror, HttpRequest proxyRequest, String uri) {
+        String method = proxyRequest.getRequestLine().getMethod();
+        HttpRequest shadowRequest;
+        if(mirror.getPipe() != null) {
+            HttpEntityEnclosingRequest eShadowRequest = new BasicHttpEntityEnclosingRequest(method, uri);
+            eShadowRequest.setEntity(
+                    new InputStreamEntity(mirror.getPipe().getInputStream(), mirror.getContentLength()));
+            shadowRequest = eShadowRequest;
+        } else {
+            shadowRequest = new BasicHttpRequest(method, uri);
+        }
+        for(Header header : proxyRequest.getAllHeaders()) {
+            if(!header.getName().equalsIgnoreCase(HttpHeaders.HOST)) {
+                shadowRequest.addHeader(header);
+            }
+        }
+        return shadowRequest;
+    }
+
+    private void execute(MirrorRequest mirror, HttpRequest shadowRequest) {
+        HttpResponse response = null;
+        try {
+            response = client.execute(targetHost, shadowRequest);
+        } catch (IOException | RuntimeException e) {
+            failed.incrementAndGet();
+        } finally {
+            // 影子请求结束后主请求不必再复制请求体
+            if(mirror.getPipe() != null) {
+                mirror.getPipe().abort();
+            }
+            if(response != null) {
+                discard(response);
+            }
+        }
+    }
+
+    /**
+     * 丢弃影子响应：直接关闭连接，不读取响应体，影子目标返回大响应时不占用镜像线程
+     */
+    private static void discard(HttpResponse response) {
+        if(response instanceof Closeable) {
+            try {
+                ((Closeable) response).close();
+            } catch (IOException e) {
+                // 忽略
+            }
+        } else {
+            EntityUtils.consumeQuietly(response.getEntity());
+        }
+    }
+
+    /**
+     * 已提交的影子请求数
+     */
+    public long getMirroredCount() {
+        return mirrored.get();
+    }
+
+    /**
+     * 因并发上限被放弃的镜像数
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * 执行失败的影子请求数
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        if(client instanceof Closeable) {
+            ((Closeable) client).close();
+        }
+    }
+}
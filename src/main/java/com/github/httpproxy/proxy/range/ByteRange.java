@@ -0,0 +1,100 @@
+package com.github.httpproxy.proxy.range;
+
+/**
+ * 单个字节范围 (RFC 7233)：bytes=first-last、bytes=first- 或 bytes=-suffix
+ */
+public class ByteRange {
+
+    private final long first;
+    private final long last;
+    private final long suffixLength;
+
+    private ByteRange(long first, long last, long suffixLength) {
+        this.first = first;
+        this.last = last;
+        this.suffixLength = suffixLength;
+    }
+
+    /**
+     * 解析Range头，只支持单个范围
+     * @return 多个范围或格式不合法时返回null
+     */
+    public static ByteRange parse(String header) {
+        if(header == null) {
+            return null;
+        }
+        String value = header.trim();
+        if(!value.startsWith("bytes=")) {
+            return null;
+        }
+        value = value.substring(6).trim();
+        int dash = value.indexOf('-');
+        if(dash < 0 || value.indexOf(',') >= 0) {
+            return null;
+        }
+        try {
+            if(dash == 0) {
+                long suffix = Long.parseLong(value.substring(1).trim());
+                return suffix > 0 ? new ByteRange(-1, -1, suffix) : null;
+            }
+            long first = Long.parseLong(value.substring(0, dash).trim());
+            String lastString = value.substring(dash + 1).trim();
+            long last = lastString.isEmpty() ? -1 : Long.parseLong(lastString);
+            if(first < 0 || (last >= 0 && last < first)) {
+                return null;
+            }
+            return new ByteRange(first, last, -1);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 解析206响应的Content-Range: bytes first-last/total
+     * @return {first, last, total}，格式不合法或总长度未知时返回null
+     */
+    public static long[] parseContentRange(String header) {
+        if(header == null) {
+            return null;
+        }
+        String value = header.trim();
+        if(!value.startsWith("bytes ")) {
+            return null;
+        }
+        value = value.substring(6).trim();
+        int dash = value.indexOf('-');
+        int slash = value.indexOf('/');
+        if(dash <= 0 || slash < dash) {
+            return null;
+        }
+        try {
+            long first = Long.parseLong(value.substring(0, dash).trim());
+            long last = Long.parseLong(value.substring(dash + 1, slash).trim());
+            long total = Long.parseLong(value.substring(slash + 1).trim());
+            if(first < 0 || last < first || last >= total) {
+                return null;
+            }
+            return new long[]{first, last, total};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 根据实体长度计算实际范围
+     * @return {start, end}(包含end)，无法满足时返回null
+     */
+    public long[] resolve(long length) {
+        if(suffixLength > 0) {
+            if(length == 0) {
+                return null;
+            }
+            return new long[]{Math.max(0, length - suffixLength), length - 1};
+        }
+        if(first >= length) {
+            return null;
+        }
+        long end = last < 0 ? length - 1 : Math.min(last, length - 1);
+        return new long[]{first, end};
+    }
+}
@@ -0,0 +1,126 @@
+package com.github.httpproxy.proxy.range;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 后端对象的长度和版本信息，从206响应的Content-Range、ETag、Last-Modified中获得
+ */
+public class ObjectMetadata {
+
+    private final long length;
+    private final String etag;
+    private final String lastModified;
+    private final String contentType;
+    private final List<String> headers;
+    private final long maxAgeMillis;
+    private final boolean shared;
+    private final long fetchedAt;
+
+    public ObjectMetadata(long length, String etag, String lastModified, String contentType) {
+        this(length, etag, lastModified, contentType, Collections.<String>emptyList());
+    }
+
+    /**
+     * @param headers 从缓存返回时需要一起返回的其他响应头，如Content-Disposition，依次为名称和值
+     */
+    public ObjectMetadata(long length, String etag, String lastModified, String contentType, List<String> headers) {
+        this(length, etag, lastModified, contentType, headers, -1, false);
+    }
+
+    /**
+     * @param maxAgeMillis 后端指定的有效期(s-maxage、max-age或Expires)，没有指定时为-1
+     * @param shared 后端是否声明了public，这样的对象可以返回给带凭据的请求
+     */
+    public ObjectMetadata(long length, String etag, String lastModified, String contentType, List<String> headers,
+                          long maxAgeMillis, boolean shared) {
+        this.length = length;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.contentType = contentType;
+        this.headers = Collections.unmodifiableList(new ArrayList<>(headers));
+        this.maxAgeMillis = maxAgeMillis;
+        this.shared = shared;
+        this.fetchedAt = System.currentTimeMillis();
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return 其他响应头，依次为名称和值
+     */
+    public List<String> getHeaders() {
+        return headers;
+    }
+
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    public boolean isShared() {
+        return shared;
+    }
+
+    public long getFetchedAt() {
+        return fetchedAt;
+    }
+
+    /**
+     * 是否仍然新鲜，有效期取后端指定的有效期和代理配置的有效期中较短的一个
+     */
+    public boolean isFresh(long ttlMillis) {
+        long ttl = maxAgeMillis >= 0 ? Math.min(maxAgeMillis, ttlMillis) : ttlMillis;
+        return System.currentTimeMillis() - fetchedAt < ttl;
+    }
+
+    private boolean hasStrongEtag() {
+        return etag != null && !etag.startsWith("W/");
+    }
+
+    /**
+     * 是否同一个版本的对象
+     */
+    public boolean sameVersion(ObjectMetadata other) {
+        if(other == null || length != other.length) {
+            return false;
+        }
+        if(etag != null || other.etag != null) {
+            return etag != null && etag.equals(other.etag);
+        }
+        return lastModified != null && lastModified.equals(other.lastModified);
+    }
+
+    /**
+     * 客户端的If-Range是否与当前版本匹配。ETag必须是强校验器，日期必须与Last-Modified完全一致
+     */
+    public boolean matchesIfRange(String ifRange) {
+        String value = ifRange.trim();
+        if(value.startsWith("\"") || value.startsWith("W/")) {
+            return hasStrongEtag() && etag.equals(value);
+        }
+        return lastModified != null && lastModified.equals(value);
+    }
+
+    /**
+     * 向后端请求分段时使用的If-Range值，对象变化时后端返回200而不是206
+     * @return 没有可用的校验器时返回null
+     */
+    public String getIfRangeValidator() {
+        return hasStrongEtag() ? etag : lastModified;
+    }
+}
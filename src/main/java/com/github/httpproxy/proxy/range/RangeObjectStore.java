@@ -0,0 +1,166 @@
+package com.github.httpproxy.proxy.range;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 按对齐的分段从后端按需获取大对象，分段缓存在{@link SegmentCache}中，
+ * 范围请求由缓存的分段拼接返回
+ */
+public class RangeObjectStore implements Closeable {
+
+    private final SegmentCache cache;
+    private final int segmentSize;
+    private final long metadataTtlMillis;
+    private final Map<String, ObjectMetadata> metadata;
+
+    /**
+     * @param cache 分段缓存
+     * @param maxObjects 保留元数据的对象数
+     * @param metadataTtlMillis 元数据有效期，过期后重新向后端确认版本
+     */
+    public RangeObjectStore(SegmentCache cache, final int maxObjects, long metadataTtlMillis) {
+        this.cache = cache;
+        this.segmentSize = cache.getSegmentSize();
+        this.metadataTtlMillis = metadataTtlMillis;
+        this.metadata = Collections.synchronizedMap(new LinkedHashMap<String, ObjectMetadata>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ObjectMetadata> eldest) {
+                return size() > maxObjects;
+            }
+        });
+    }
+
+    /**
+     * 获取对象元数据。未知或已过期时获取第一个分段，同时得到长度和版本
+     * @return 后端不支持范围请求或不允许缓存时返回null
+     */
+    public ObjectMetadata getMetadata(String key, SegmentSource source) throws IOException {
+        ObjectMetadata current = metadata.get(key);
+        if(current != null && current.isFresh(metadataTtlMillis)) {
+            return current;
+        }
+        RangeResponse response = source.fetch(0, segmentSize - 1, null);
+        if(response == null) {
+            metadata.remove(key);
+            cache.invalidate(key);
+            return null;
+        }
+        try {
+            ObjectMetadata fresh = response.getMetadata();
+            if(!fresh.sameVersion(current)) {
+                cache.invalidate(key);
+            }
+            metadata.put(key, fresh);
+            SegmentCache.Entry entry = cache.allocate(new SegmentKey(key, fresh.getIfRangeValidator(), 0));
+            fill(entry, response.getBody(), (int) Math.min(segmentSize, fresh.getLength()));
+            cache.release(entry);
+            return fresh;
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * 获取已缓存且未过期的元数据，不访问后端
+     * @return 没有缓存或已过期时返回null
+     */
+    public ObjectMetadata getCachedMetadata(String key) {
+        ObjectMetadata current = metadata.get(key);
+        return current != null && current.isFresh(metadataTtlMillis) ? current : null;
+    }
+
+    /**
+     * 把对象的[start, end]写到输出流，缺少的分段从后端获取并缓存
+     * @throws IOException 对象在传输过程中发生变化时，已缓存的分段失效
+     */
+    public void copyRange(String key, ObjectMetadata meta, long start, long end, SegmentSource source,
+                          OutputStream out) throws IOException {
+        byte[] chunk = new byte[16 * 1024];
+        for(long index = start / segmentSize; index <= end / segmentSize; index++) {
+            SegmentCache.Entry entry = segment(key, meta, index, source);
+            try {
+                long segmentStart = index * segmentSize;
+                int from = (int) Math.max(0, start - segmentStart);
+                int to = (int) Math.min(end - segmentStart + 1, entry.getLength());
+                ByteBuffer buffer = cache.buffer(entry);
+                buffer.position(from);
+                while (from < to) {
+                    int n = Math.min(chunk.length, to - from);
+                    buffer.get(chunk, 0, n);
+                    out.write(chunk, 0, n);
+                    from += n;
+                }
+            } finally {
+                cache.release(entry);
+            }
+        }
+    }
+
+    private SegmentCache.Entry segment(String key, ObjectMetadata meta, long index, SegmentSource source)
+            throws IOException {
+        // 分段按版本区分，meta之后发布的其他版本的分段不会被取到
+        SegmentKey segmentKey = new SegmentKey(key, meta.getIfRangeValidator(), index);
+        SegmentCache.Entry entry = cache.acquire(segmentKey);
+        if(entry != null) {
+            return entry;
+        }
+        long segmentStart = index * segmentSize;
+        long segmentEnd = Math.min(segmentStart + segmentSize, meta.getLength()) - 1;
+        RangeResponse response = source.fetch(segmentStart, segmentEnd, meta);
+        if(response == null || !meta.sameVersion(response.getMetadata())) {
+            if(response != null) {
+                response.close();
+            }
+            // 其他请求可能已经刷新到新版本，只清理仍然是meta的版本
+            if(metadata.remove(key, meta)) {
+                cache.invalidate(key);
+            }
+            throw new IOException("Upstream object changed while serving range: " + key);
+        }
+        try {
+            entry = cache.allocate(segmentKey);
+            fill(entry, response.getBody(), (int) (segmentEnd - segmentStart + 1));
+            return entry;
+        } finally {
+            response.close();
+        }
+    }
+
+    // 把分段数据直接读入映射的槽位，成功后发布(仍被pin住)，失败时丢弃并释放
+    private void fill(SegmentCache.Entry entry, InputStream in, int length) throws IOException {
+        boolean published = false;
+        try {
+            ByteBuffer buffer = cache.buffer(entry);
+            byte[] chunk = new byte[16 * 1024];
+            int filled = 0;
+            while (filled < length) {
+                int n = in.read(chunk, 0, Math.min(chunk.length, length - filled));
+                if(n == -1) {
+                    throw new EOFException("Upstream returned " + filled + " of " + length + " bytes");
+                }
+                buffer.put(chunk, 0, n);
+                filled += n;
+            }
+            cache.publish(entry, length);
+            published = true;
+        } finally {
+            if(!published) {
+                cache.discard(entry);
+                cache.release(entry);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        cache.close();
+    }
+}
@@ -0,0 +1,34 @@
+package com.github.httpproxy.proxy.range;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 后端对一个分段请求返回的206响应
+ */
+public class RangeResponse implements Closeable {
+
+    private final ObjectMetadata metadata;
+    private final InputStream body;
+    private final Closeable resource;
+
+    public RangeResponse(ObjectMetadata metadata, InputStream body, Closeable resource) {
+        this.metadata = metadata;
+        this.body = body;
+        this.resource = resource;
+    }
+
+    public ObjectMetadata getMetadata() {
+        return metadata;
+    }
+
+    public InputStream getBody() {
+        return body;
+    }
+
+    @Override
+    public void close() throws IOException {
+        resource.close();
+    }
+}
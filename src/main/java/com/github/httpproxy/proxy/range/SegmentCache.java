@@ -0,0 +1,179 @@
+package com.github.httpproxy.proxy.range;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 内存映射的分段缓存。
+ * 缓存文件被划分为固定大小的槽位，每个槽位单独映射，按LRU淘汰。
+ * 正在读写的分段被pin住，不会被淘汰；被淘汰或失效的pin住的分段在最后一次release时才释放槽位。
+ * 索引只保存在内存中，重启后缓存为空
+ */
+public class SegmentCache implements Closeable {
+
+    /**
+     * 缓存中的一个分段，通过{@link #acquire}或{@link #allocate}获得，用完必须{@link #release}
+     */
+    public static final class Entry {
+        private final SegmentKey key;
+        private final int slot;
+        private int length;
+        private int pins = 1;
+        private boolean removed;
+
+        private Entry(SegmentKey key, int slot) {
+            this.key = key;
+            this.slot = slot;
+        }
+
+        public SegmentKey getKey() {
+            return key;
+        }
+
+        /**
+         * 分段中的有效字节数，对象的最后一个分段可能小于分段大小
+         */
+        public int getLength() {
+            return length;
+        }
+    }
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final int segmentSize;
+    private final MappedByteBuffer[] slots;
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    private final LinkedHashMap<SegmentKey, Entry> index = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param file 缓存文件，启动时清空，关闭时删除
+     * @param segmentSize 分段大小
+     * @param maxBytes 缓存总大小
+     */
+    public SegmentCache(File file, int segmentSize, long maxBytes) throws IOException {
+        int slotCount = (int) Math.max(1, maxBytes / segmentSize);
+        this.file = file;
+        this.segmentSize = segmentSize;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.raf.setLength(0);
+        this.raf.setLength((long) slotCount * segmentSize);
+        this.slots = new MappedByteBuffer[slotCount];
+        FileChannel channel = raf.getChannel();
+        for(int i = 0; i < slotCount; i++) {
+            slots[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * segmentSize, segmentSize);
+            freeSlots.add(i);
+        }
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * 查找并pin住一个已缓存的分段
+     * @return 未缓存时返回null
+     */
+    public synchronized Entry acquire(SegmentKey key) {
+        Entry entry = index.get(key);
+        if(entry != null) {
+            entry.pins++;
+        }
+        return entry;
+    }
+
+    /**
+     * 为新分段分配槽位，必要时淘汰最久未使用且未被pin住的分段。
+     * 返回的分段已被pin住，写入数据后调用{@link #publish}
+     * @throws IOException 所有槽位都被pin住
+     */
+    public synchronized Entry allocate(SegmentKey key) throws IOException {
+        Integer slot = freeSlots.poll();
+        if(slot == null) {
+            Iterator<Entry> it = index.values().iterator();
+            while (it.hasNext()) {
+                Entry candidate = it.next();
+                if(candidate.pins == 0) {
+                    it.remove();
+                    candidate.removed = true;
+                    slot = candidate.slot;
+                    break;
+                }
+            }
+        }
+        if(slot == null) {
+            throw new IOException("All " + slots.length + " cache segments are in use");
+        }
+        return new Entry(key, slot);
+    }
+
+    /**
+     * 分段的数据缓冲区，position为0，limit为分段大小
+     */
+    public ByteBuffer buffer(Entry entry) {
+        return slots[entry.slot].duplicate();
+    }
+
+    /**
+     * 数据写入完成，加入索引
+     */
+    public synchronized void publish(Entry entry, int length) {
+        entry.length = length;
+        Entry old = index.put(entry.key, entry);
+        if(old != null && old != entry) {
+            remove(old);
+        }
+    }
+
+    public synchronized void release(Entry entry) {
+        entry.pins--;
+        if(entry.pins == 0 && entry.removed) {
+            freeSlots.add(entry.slot);
+        }
+    }
+
+    /**
+     * 放弃一个没有发布的分段，槽位在release时释放
+     */
+    public synchronized void discard(Entry entry) {
+        entry.removed = true;
+    }
+
+    /**
+     * 删除对象的所有分段
+     */
+    public synchronized void invalidate(String objectKey) {
+        Iterator<Map.Entry<SegmentKey, Entry>> it = index.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if(entry.key.getObjectKey().equals(objectKey)) {
+                it.remove();
+                remove(entry);
+            }
+        }
+    }
+
+    private void remove(Entry entry) {
+        entry.removed = true;
+        if(entry.pins == 0) {
+            freeSlots.add(entry.slot);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+        if(!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
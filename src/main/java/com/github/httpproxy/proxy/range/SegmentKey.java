@@ -0,0 +1,47 @@
+package com.github.httpproxy.proxy.range;
+
+/**
+ * 对象某个版本中的一个分段。
+ * 版本是对象的强校验器，不同版本的分段互不相同，读取旧版本的请求不会拿到新版本的数据
+ */
+public final class SegmentKey {
+
+    private final String objectKey;
+    private final String version;
+    private final long index;
+
+    public SegmentKey(String objectKey, String version, long index) {
+        this.objectKey = objectKey;
+        this.version = version != null ? version : "";
+        this.index = index;
+    }
+
+    public String getObjectKey() {
+        return objectKey;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public long getIndex() {
+        return index;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) {
+            return true;
+        }
+        if(!(o instanceof SegmentKey)) {
+            return false;
+        }
+        SegmentKey other = (SegmentKey) o;
+        return index == other.index && objectKey.equals(other.objectKey) && version.equals(other.version);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * objectKey.hashCode() + version.hashCode()) + (int) (index ^ (index >>> 32));
+    }
+}
@@ -0,0 +1,17 @@
+package com.github.httpproxy.proxy.range;
+
+import java.io.IOException;
+
+/**
+ * 从后端获取对象的一个字节范围
+ */
+public interface SegmentSource {
+
+    /**
+     * @param start 起始位置
+     * @param end 结束位置(包含)
+     * @param expected 期望的对象版本，用于If-Range，可以为null
+     * @return 后端不支持范围请求、不允许缓存或对象已变化时返回null
+     */
+    RangeResponse fetch(long start, long end, ObjectMetadata expected) throws IOException;
+}
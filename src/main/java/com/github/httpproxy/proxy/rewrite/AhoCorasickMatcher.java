@@ -0,0 +1,121 @@
+package com.github.httpproxy.proxy.rewrite;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * 字节上的Aho-Corasick多模式匹配自动机。
+ * 构造时把goto和fail函数展开为完整的状态转移表，匹配时每个字节只需一次查表
+ */
+public class AhoCorasickMatcher {
+
+    private final int[] transitions;
+    private final int[] depth;
+    /**
+     * 每个状态结束的最长模式下标，没有则为-1
+     */
+    private final int[] output;
+    private final int[] patternLengths;
+    private final int maxPatternLength;
+
+    public AhoCorasickMatcher(byte[][] patterns) {
+        int maxStates = 1;
+        int maxLength = 0;
+        patternLengths = new int[patterns.length];
+        for(int i = 0; i < patterns.length; i++) {
+            if(patterns[i].length == 0) {
+                throw new IllegalArgumentException("Empty pattern at index " + i);
+            }
+            maxStates += patterns[i].length;
+            maxLength = Math.max(maxLength, patterns[i].length);
+            patternLengths[i] = patterns[i].length;
+        }
+        maxPatternLength = maxLength;
+
+        int[] trie = new int[maxStates << 8];
+        Arrays.fill(trie, -1);
+        int[] depths = new int[maxStates];
+        int[] outputs = new int[maxStates];
+        Arrays.fill(outputs, -1);
+        int states = 1;
+        for(int i = 0; i < patterns.length; i++) {
+            int state = 0;
+            for(byte b : patterns[i]) {
+                int index = (state << 8) | (b & 0xff);
+                if(trie[index] == -1) {
+                    depths[states] = depths[state] + 1;
+                    trie[index] = states++;
+                }
+                state = trie[index];
+            }
+            outputs[state] = i;
+        }
+
+        // 广度优先计算fail函数，同时把缺失的转移补全为fail状态的转移
+        int[] fail = new int[states];
+        Deque<Integer> queue = new ArrayDeque<>();
+        for(int b = 0; b < 256; b++) {
+            int s = trie[b];
+            if(s == -1) {
+                trie[b] = 0;
+            } else {
+                fail[s] = 0;
+                queue.add(s);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int r = queue.poll();
+            if(outputs[r] == -1) {
+                outputs[r] = outputs[fail[r]];
+            }
+            for(int b = 0; b < 256; b++) {
+                int index = (r << 8) | b;
+                int s = trie[index];
+                if(s == -1) {
+                    trie[index] = trie[(fail[r] << 8) | b];
+                } else {
+                    fail[s] = trie[(fail[r] << 8) | b];
+                    queue.add(s);
+                }
+            }
+        }
+
+        this.transitions = Arrays.copyOf(trie, states << 8);
+        this.depth = Arrays.copyOf(depths, states);
+        this.output = Arrays.copyOf(outputs, states);
+    }
+
+    /**
+     * 初始状态
+     */
+    public int initialState() {
+        return 0;
+    }
+
+    public int next(int state, byte b) {
+        return transitions[(state << 8) | (b & 0xff)];
+    }
+
+    /**
+     * 在该状态结束的最长模式下标，没有匹配时返回-1
+     */
+    public int match(int state) {
+        return output[state];
+    }
+
+    /**
+     * 该状态对应的已匹配前缀长度，即之后仍可能成为匹配一部分的字节数
+     */
+    public int depth(int state) {
+        return depth[state];
+    }
+
+    public int patternLength(int pattern) {
+        return patternLengths[pattern];
+    }
+
+    public int getMaxPatternLength() {
+        return maxPatternLength;
+    }
+}
@@ -0,0 +1,108 @@
+package com.github.httpproxy.proxy.rewrite;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 在字节流经过时把匹配的模式替换为对应的内容。
+ * 只保留可能成为匹配前缀的字节(最多最长模式长度)，其余字节立即写出，不缓冲整个响应。
+ * flush时保留的前缀字节不会写出，{@link #finish()}时全部写出
+ */
+public class RewritingOutputStream extends FilterOutputStream {
+
+    private final AhoCorasickMatcher matcher;
+    private final byte[][] replacements;
+    private final byte[] pending;
+    private int pendingLength;
+    private int state;
+    private final byte[] buffer = new byte[8 * 1024];
+    private int bufferLength;
+
+    /**
+     * @param out 输出流
+     * @param matcher 模式
+     * @param replacements 与模式下标对应的替换内容
+     */
+    public RewritingOutputStream(OutputStream out, AhoCorasickMatcher matcher, byte[][] replacements) {
+        super(out);
+        this.matcher = matcher;
+        this.replacements = replacements;
+        this.pending = new byte[matcher.getMaxPatternLength()];
+        this.state = matcher.initialState();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        process((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        for(int i = off; i < off + len; i++) {
+            process(b[i]);
+        }
+    }
+
+    private void process(byte b) throws IOException {
+        state = matcher.next(state, b);
+        pending[pendingLength++] = b;
+        int pattern = matcher.match(state);
+        if(pattern >= 0) {
+            emit(pending, 0, pendingLength - matcher.patternLength(pattern));
+            byte[] replacement = replacements[pattern];
+            emit(replacement, 0, replacement.length);
+            pendingLength = 0;
+            state = matcher.initialState();
+            return;
+        }
+        int keep = matcher.depth(state);
+        if(pendingLength > keep) {
+            int release = pendingLength - keep;
+            emit(pending, 0, release);
+            System.arraycopy(pending, release, pending, 0, keep);
+            pendingLength = keep;
+        }
+    }
+
+    private void emit(byte[] b, int off, int len) throws IOException {
+        if(len > buffer.length - bufferLength) {
+            drain();
+            if(len > buffer.length) {
+                out.write(b, off, len);
+                return;
+            }
+        }
+        System.arraycopy(b, off, buffer, bufferLength, len);
+        bufferLength += len;
+    }
+
+    private void drain() throws IOException {
+        if(bufferLength > 0) {
+            out.write(buffer, 0, bufferLength);
+            bufferLength = 0;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    /**
+     * 写出保留的字节，不关闭底层输出流
+     */
+    public void finish() throws IOException {
+        emit(pending, 0, pendingLength);
+        pendingLength = 0;
+        state = matcher.initialState();
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        super.close();
+    }
+}
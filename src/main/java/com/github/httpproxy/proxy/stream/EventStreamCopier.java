@@ -0,0 +1,84 @@
+package com.github.httpproxy.proxy.stream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按事件边界刷新的流式复制。
+ * 只在读到完整事件之后刷新；如果后端紧接着还有数据可读，
+ * 在coalesce窗口内把多个小事件合并为一次刷新，减少系统调用，
+ * 没有更多数据可读或窗口到期时立即刷新，事件不会被延迟到下一次阻塞读之后
+ */
+public class EventStreamCopier {
+
+    private final StreamingMode mode;
+    private final long coalesceNanos;
+    /**
+     * available()不可靠时(例如解压流)每个事件都刷新
+     */
+    private final boolean flushEveryEvent;
+    private final byte[] buffer;
+    private boolean lastNewline;
+
+    /**
+     * @param mode 事件分隔方式
+     * @param coalesceMicros 合并刷新的窗口 (微秒)，0表示每个事件都刷新
+     * @param flushEveryEvent 输入流的available()不可靠时为true
+     */
+    public EventStreamCopier(StreamingMode mode, long coalesceMicros, boolean flushEveryEvent) {
+        this.mode = mode;
+        this.coalesceNanos = TimeUnit.MICROSECONDS.toNanos(coalesceMicros);
+        this.flushEveryEvent = flushEveryEvent || coalesceMicros <= 0;
+        this.buffer = new byte[8 * 1024];
+    }
+
+    public void copy(InputStream in, OutputStream out) throws IOException {
+        long pendingSince = -1;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            if(scanBoundary(buffer, read) && pendingSince < 0) {
+                pendingSince = System.nanoTime();
+            }
+            if(pendingSince >= 0 && (flushEveryEvent || in.available() == 0
+                    || System.nanoTime() - pendingSince >= coalesceNanos)) {
+                out.flush();
+                pendingSince = -1;
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * 扫描本次读到的数据，状态跨越多次读取保留
+     * @return 是否包含事件边界
+     */
+    private boolean scanBoundary(byte[] b, int len) {
+        if(mode == StreamingMode.LINE_DELIMITED) {
+            for(int i = len - 1; i >= 0; i--) {
+                if(b[i] == '\n') {
+                    return true;
+                }
+            }
+            return false;
+        }
+        // SSE: 连续两个换行，忽略其间的\r
+        boolean found = false;
+        boolean newline = lastNewline;
+        for(int i = 0; i < len; i++) {
+            byte c = b[i];
+            if(c == '\n') {
+                if(newline) {
+                    found = true;
+                }
+                newline = true;
+            } else if(c != '\r') {
+                newline = false;
+            }
+        }
+        lastNewline = newline;
+        return found;
+    }
+}
@@ -0,0 +1,24 @@
+package com.github.httpproxy.proxy.stream;
+
+/**
+ * 流式响应的事件分隔方式
+ */
+public enum StreamingMode {
+
+    /**
+     * server-sent events，空行结束一个事件
+     */
+    EVENT_STREAM,
+
+    /**
+     * 换行分隔的流式JSON (NDJSON、JSON Lines、JSON text sequences)
+     */
+    LINE_DELIMITED;
+
+    /**
+     * 根据响应的Content-Type确定分隔方式
+     */
+    public static StreamingMode forContentType(String mimeType) {
+        return "text/event-stream".equals(mimeType) ? EVENT_STREAM : LINE_DELIMITED;
+    }
+}
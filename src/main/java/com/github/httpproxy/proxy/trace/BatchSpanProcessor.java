@@ -0,0 +1,107 @@
+package com.github.httpproxy.proxy.trace;
+
+import com.github.httpproxy.proxy.log.MpscRingBuffer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 把结束的span放入无锁环形缓冲区，由后台线程按批次交给{@link SpanExporter}。
+ * 缓冲区满时丢弃span并计数，不阻塞请求线程
+ */
+public class BatchSpanProcessor implements Closeable {
+
+    private final MpscRingBuffer<Span> buffer;
+    private final SpanExporter exporter;
+    private final int batchSize;
+    private final long scheduleDelayNanos;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong exportFailures = new AtomicLong();
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    /**
+     * @param exporter 导出器
+     * @param capacity 缓冲区容量
+     * @param batchSize 每批最多导出的span数
+     * @param scheduleDelayMillis 不足一批时最长等待时间
+     */
+    public BatchSpanProcessor(SpanExporter exporter, int capacity, int batchSize, long scheduleDelayMillis) {
+        this.buffer = new MpscRingBuffer<>(capacity);
+        this.exporter = exporter;
+        this.batchSize = batchSize;
+        this.scheduleDelayNanos = TimeUnit.MILLISECONDS.toNanos(scheduleDelayMillis);
+        this.worker = new Thread(this::run, "proxy-span-exporter");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public void onEnd(Span span) {
+        if(!running || !buffer.offer(span)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getExportFailures() {
+        return exportFailures.get();
+    }
+
+    private void run() {
+        List<Span> batch = new ArrayList<>(batchSize);
+        long lastExport = System.nanoTime();
+        while (running || buffer.size() > 0) {
+            Span span;
+            while (batch.size() < batchSize && (span = buffer.poll()) != null) {
+                batch.add(span);
+            }
+            long now = System.nanoTime();
+            if(batch.size() >= batchSize || (!batch.isEmpty() && now - lastExport >= scheduleDelayNanos)) {
+                export(batch);
+                lastExport = now;
+            } else {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+        Span span;
+        while ((span = buffer.poll()) != null) {
+            batch.add(span);
+        }
+        export(batch);
+    }
+
+    private void export(List<Span> batch) {
+        if(batch.isEmpty()) {
+            return;
+        }
+        try {
+            exporter.export(batch);
+        } catch (IOException | RuntimeException e) {
+            exportFailures.incrementAndGet();
+        }
+        batch.clear();
+    }
+
+    /**
+     * 导出剩余的span后关闭导出器
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark(worker);
+        try {
+            worker.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        exporter.close();
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.httpproxy.proxy.trace;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 把span以JSON行写入本地文件，子span各占一行并带parentId
+ */
+public class FileSpanExporter implements SpanExporter {
+
+    private final Writer writer;
+    private final StringBuilder line = new StringBuilder(256);
+
+    public FileSpanExporter(File file) throws IOException {
+        this.writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void export(List<Span> spans) throws IOException {
+        for(Span span : spans) {
+            write(span);
+            for(Span child : span.getChildren()) {
+                write(child);
+            }
+        }
+        writer.flush();
+    }
+
+    private void write(Span span) throws IOException {
+        line.setLength(0);
+        line.append("{\"traceId\":\"").append(span.getTraceId())
+                .append("\",\"spanId\":\"").append(span.getSpanId()).append('"');
+        if(span.getParentSpanId() != null) {
+            line.append(",\"parentId\":\"").append(span.getParentSpanId()).append('"');
+        }
+        line.append(",\"name\":\"").append(span.getName())
+                .append("\",\"start\":").append(span.getStartEpochMicros())
+                .append(",\"durationUs\":").append(span.getDurationNanos() / 1000);
+        if(!span.getAttributes().isEmpty()) {
+            line.append(",\"attributes\":{");
+            boolean first = true;
+            for(Map.Entry<String, String> e : span.getAttributes().entrySet()) {
+                if(!first) {
+                    line.append(',');
+                }
+                first = false;
+                line.append('"').append(e.getKey()).append("\":\"");
+                appendEscaped(e.getValue());
+                line.append('"');
+            }
+            line.append('}');
+        }
+        line.append("}\n");
+        writer.append(line);
+    }
+
+    private void appendEscaped(String value) {
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if(c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if(c < 0x20) {
+                line.append(String.format("\\u%04x", (int) c));
+            } else {
+                line.append(c);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
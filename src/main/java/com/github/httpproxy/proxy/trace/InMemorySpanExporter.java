@@ -0,0 +1,45 @@
+package com.github.httpproxy.proxy.trace;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * 在内存中保留最近导出的span，用于测试和调试
+ */
+public class InMemorySpanExporter implements SpanExporter {
+
+    private final int maxSpans;
+    private final Deque<Span> spans = new ArrayDeque<>();
+
+    public InMemorySpanExporter() {
+        this(10000);
+    }
+
+    public InMemorySpanExporter(int maxSpans) {
+        this.maxSpans = maxSpans;
+    }
+
+    @Override
+    public synchronized void export(List<Span> batch) {
+        for(Span span : batch) {
+            if(spans.size() >= maxSpans) {
+                spans.removeFirst();
+            }
+            spans.addLast(span);
+        }
+    }
+
+    public synchronized List<Span> getSpans() {
+        return new ArrayList<>(spans);
+    }
+
+    public synchronized void clear() {
+        spans.clear();
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,188 @@
+package com.github.httpproxy.proxy.trace;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 代理处理一次请求的span，以及各阶段的子span(租用连接、建立连接、写请求、首字节、响应流)。
+ * 只在处理该请求的线程中修改，结束后交给{@link BatchSpanProcessor}
+ */
+public class Span {
+
+    /**
+     * 存放在HttpContext中的属性名，供连接管理器和请求执行器记录阶段耗时
+     */
+    public static final String CONTEXT_ATTR = Span.class.getName();
+
+    private final String traceId;
+    private final String spanId;
+    private final String parentSpanId;
+    private final String name;
+    private final boolean sampled;
+    private final long startEpochMicros;
+    private final long startNanos;
+    private long durationNanos = -1;
+    private final Map<String, String> attributes = new LinkedHashMap<>();
+    private List<Span> children = Collections.emptyList();
+
+    /**
+     * 阶段时间点 (System.nanoTime)，0表示未发生
+     */
+    private long executeStartNanos;
+    private long connectStartNanos;
+    private long connectEndNanos;
+    private long writeStartNanos;
+    private long writeEndNanos;
+
+    public Span(String traceId, String spanId, String parentSpanId, String name, boolean sampled) {
+        this(traceId, spanId, parentSpanId, name, sampled,
+                TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()), System.nanoTime());
+    }
+
+    private Span(String traceId, String spanId, String parentSpanId, String name, boolean sampled,
+                 long startEpochMicros, long startNanos) {
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentSpanId = parentSpanId;
+        this.name = name;
+        this.sampled = sampled;
+        this.startEpochMicros = startEpochMicros;
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * 记录一个已完成的子span
+     */
+    public Span addChild(String childName, long childStartNanos, long childEndNanos) {
+        Span child = new Span(traceId, TraceContext.newSpanId(), spanId, childName, sampled,
+                startEpochMicros + TimeUnit.NANOSECONDS.toMicros(childStartNanos - startNanos), childStartNanos);
+        child.durationNanos = childEndNanos - childStartNanos;
+        if(children.isEmpty()) {
+            children = new ArrayList<>(6);
+        }
+        children.add(child);
+        return child;
+    }
+
+    public void setAttribute(String key, String value) {
+        attributes.put(key, value);
+    }
+
+    /**
+     * 开始向后端发起请求
+     */
+    public void markExecuteStart() {
+        executeStartNanos = System.nanoTime();
+    }
+
+    /**
+     * 由连接管理器调用：开始建立连接
+     */
+    public void markConnectStart() {
+        connectStartNanos = System.nanoTime();
+        leaseEnded(connectStartNanos);
+    }
+
+    /**
+     * 由连接管理器调用：连接建立完成
+     */
+    public void markConnectEnd() {
+        connectEndNanos = System.nanoTime();
+        addChild("connect", connectStartNanos, connectEndNanos);
+    }
+
+    /**
+     * 由请求执行器调用：开始写请求
+     */
+    public void markWriteStart() {
+        writeStartNanos = System.nanoTime();
+        if(connectStartNanos == 0) {
+            leaseEnded(writeStartNanos);
+        }
+    }
+
+    /**
+     * 由请求执行器调用：请求写完
+     */
+    public void markWriteEnd() {
+        writeEndNanos = System.nanoTime();
+        addChild("request.write", writeStartNanos, writeEndNanos);
+    }
+
+    /**
+     * 由请求执行器调用：收到响应头，从请求写完开始计算
+     */
+    public void markFirstByte() {
+        addChild("ttfb", writeEndNanos, System.nanoTime());
+    }
+
+    // 从开始执行到开始连接(或复用连接时开始写请求)即为从连接池租用连接的时间
+    private void leaseEnded(long nanos) {
+        if(executeStartNanos != 0) {
+            addChild("pool.lease", executeStartNanos, nanos);
+            executeStartNanos = 0;
+        }
+    }
+
+    public void end() {
+        durationNanos = System.nanoTime() - startNanos;
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public String getSpanId() {
+        return spanId;
+    }
+
+    public String getParentSpanId() {
+        return parentSpanId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isSampled() {
+        return sampled;
+    }
+
+    public long getStartEpochMicros() {
+        return startEpochMicros;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    public Map<String, String> getAttributes() {
+        return attributes;
+    }
+
+    public List<Span> getChildren() {
+        return children;
+    }
+
+    /**
+     * 传给下游的W3C traceparent
+     */
+    public String toTraceparent() {
+        return "00-" + traceId + "-" + spanId + (sampled ? "-01" : "-00");
+    }
+
+    /**
+     * 传给下游的B3单头
+     */
+    public String toB3() {
+        StringBuilder sb = new StringBuilder(traceId).append('-').append(spanId).append(sampled ? "-1" : "-0");
+        if(parentSpanId != null) {
+            sb.append('-').append(parentSpanId);
+        }
+        return sb.toString();
+    }
+}
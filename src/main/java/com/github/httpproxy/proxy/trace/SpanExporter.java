@@ -0,0 +1,13 @@
+package com.github.httpproxy.proxy.trace;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * 批量导出已结束的span。由{@link BatchSpanProcessor}的后台线程调用，实现不需要线程安全
+ */
+public interface SpanExporter extends Closeable {
+
+    void export(List<Span> spans) throws IOException;
+}
@@ -0,0 +1,70 @@
+package com.github.httpproxy.proxy.trace;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 包装连接管理器，在HttpContext中的{@link Span}上记录建立连接的耗时
+ */
+public class TimingConnectionManager implements HttpClientConnectionManager {
+
+    private final HttpClientConnectionManager delegate;
+
+    public TimingConnectionManager(HttpClientConnectionManager delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+        return delegate.requestConnection(route, state);
+    }
+
+    @Override
+    public void releaseConnection(HttpClientConnection conn, Object newState, long validDuration, TimeUnit timeUnit) {
+        delegate.releaseConnection(conn, newState, validDuration, timeUnit);
+    }
+
+    @Override
+    public void connect(HttpClientConnection conn, HttpRoute route, int connectTimeout, HttpContext context)
+            throws IOException {
+        Span span = (Span) context.getAttribute(Span.CONTEXT_ATTR);
+        if(span == null) {
+            delegate.connect(conn, route, connectTimeout, context);
+            return;
+        }
+        span.markConnectStart();
+        delegate.connect(conn, route, connectTimeout, context);
+        span.markConnectEnd();
+    }
+
+    @Override
+    public void upgrade(HttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException {
+        delegate.upgrade(conn, route, context);
+    }
+
+    @Override
+    public void routeComplete(HttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException {
+        delegate.routeComplete(conn, route, context);
+    }
+
+    @Override
+    public void closeIdleConnections(long idletime, TimeUnit tunit) {
+        delegate.closeIdleConnections(idletime, tunit);
+    }
+
+    @Override
+    public void closeExpiredConnections() {
+        delegate.closeExpiredConnections();
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+}
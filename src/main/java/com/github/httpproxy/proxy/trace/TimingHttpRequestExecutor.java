@@ -0,0 +1,40 @@
+package com.github.httpproxy.proxy.trace;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import java.io.IOException;
+
+/**
+ * 记录写请求和等待响应头耗时的请求执行器，耗时记录在HttpContext中的{@link Span}上
+ */
+public class TimingHttpRequestExecutor extends HttpRequestExecutor {
+
+    @Override
+    protected HttpResponse doSendRequest(HttpRequest request, HttpClientConnection conn, HttpContext context)
+            throws IOException, HttpException {
+        Span span = (Span) context.getAttribute(Span.CONTEXT_ATTR);
+        if(span == null) {
+            return super.doSendRequest(request, conn, context);
+        }
+        span.markWriteStart();
+        HttpResponse response = super.doSendRequest(request, conn, context);
+        span.markWriteEnd();
+        return response;
+    }
+
+    @Override
+    protected HttpResponse doReceiveResponse(HttpRequest request, HttpClientConnection conn, HttpContext context)
+            throws HttpException, IOException {
+        HttpResponse response = super.doReceiveResponse(request, conn, context);
+        Span span = (Span) context.getAttribute(Span.CONTEXT_ATTR);
+        if(span != null) {
+            span.markFirstByte();
+        }
+        return response;
+    }
+}
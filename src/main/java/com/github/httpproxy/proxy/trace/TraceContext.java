@@ -0,0 +1,186 @@
+package com.github.httpproxy.proxy.trace;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 传播的链路上下文：traceId、上游spanId和采样标记。
+ * 支持W3C traceparent和B3(单头与多头)两种格式
+ */
+public class TraceContext {
+
+    public static final String TRACEPARENT = "traceparent";
+    public static final String B3 = "b3";
+    public static final String B3_TRACE_ID = "X-B3-TraceId";
+    public static final String B3_SPAN_ID = "X-B3-SpanId";
+    public static final String B3_PARENT_SPAN_ID = "X-B3-ParentSpanId";
+    public static final String B3_SAMPLED = "X-B3-Sampled";
+    public static final String B3_FLAGS = "X-B3-Flags";
+
+    private final String traceId;
+    private final String spanId;
+    /**
+     * null表示上游没有做采样决定
+     */
+    private final Boolean sampled;
+    private final boolean b3;
+
+    public TraceContext(String traceId, String spanId, Boolean sampled, boolean b3) {
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.sampled = sampled;
+        this.b3 = b3;
+    }
+
+    /**
+     * 32位十六进制traceId
+     */
+    public String getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * 16位十六进制spanId，新建链路时为null
+     */
+    public String getSpanId() {
+        return spanId;
+    }
+
+    public Boolean getSampled() {
+        return sampled;
+    }
+
+    /**
+     * 上游是否使用B3格式传播
+     */
+    public boolean isB3() {
+        return b3;
+    }
+
+    /**
+     * 解析W3C traceparent: version-traceid-parentid-flags
+     * @return 格式不合法时返回null
+     */
+    public static TraceContext parseTraceparent(String value) {
+        if(value == null) {
+            return null;
+        }
+        String[] parts = value.trim().split("-");
+        if(parts.length < 4 || parts[0].length() != 2 || "ff".equals(parts[0])) {
+            return null;
+        }
+        if(!isHexId(parts[1], 32) || !isHexId(parts[2], 16) || parts[3].length() != 2) {
+            return null;
+        }
+        int flags;
+        try {
+            flags = Integer.parseInt(parts[3], 16);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return new TraceContext(parts[1], parts[2], (flags & 1) == 1, false);
+    }
+
+    /**
+     * 解析B3单头格式: traceid-spanid[-sampled[-parentspanid]]，或只有采样标记
+     * @return 格式不合法时返回null
+     */
+    public static TraceContext parseB3(String value) {
+        if(value == null) {
+            return null;
+        }
+        String[] parts = value.trim().split("-");
+        if(parts.length == 1) {
+            // 只有采样决定，没有id
+            Boolean sampled = parseB3Sampled(parts[0]);
+            return sampled == null ? null : new TraceContext(newTraceId(), null, sampled, true);
+        }
+        String traceId = normalizeB3TraceId(parts[0]);
+        if(traceId == null || !isHexId(parts[1], 16)) {
+            return null;
+        }
+        Boolean sampled = parts.length > 2 ? parseB3Sampled(parts[2]) : null;
+        return new TraceContext(traceId, parts[1], sampled, true);
+    }
+
+    /**
+     * 解析B3多头格式
+     * @return 没有或格式不合法时返回null
+     */
+    public static TraceContext parseB3Multi(String traceIdValue, String spanIdValue,
+                                            String sampledValue, String flagsValue) {
+        Boolean sampled = "1".equals(flagsValue) ? Boolean.TRUE : parseB3Sampled(sampledValue);
+        if(traceIdValue == null) {
+            return sampled == null ? null : new TraceContext(newTraceId(), null, sampled, true);
+        }
+        String traceId = normalizeB3TraceId(traceIdValue.trim());
+        if(traceId == null || spanIdValue == null || !isHexId(spanIdValue.trim(), 16)) {
+            return null;
+        }
+        return new TraceContext(traceId, spanIdValue.trim(), sampled, true);
+    }
+
+    private static Boolean parseB3Sampled(String value) {
+        if(value == null) {
+            return null;
+        }
+        switch (value.trim()) {
+            case "1":
+            case "d":
+            case "true":
+                return Boolean.TRUE;
+            case "0":
+            case "false":
+                return Boolean.FALSE;
+            default:
+                return null;
+        }
+    }
+
+    // B3允许64位traceId，左侧补零为128位
+    private static String normalizeB3TraceId(String traceId) {
+        if(isHexId(traceId, 32)) {
+            return traceId;
+        }
+        if(isHexId(traceId, 16)) {
+            return "0000000000000000" + traceId;
+        }
+        return null;
+    }
+
+    private static boolean isHexId(String id, int length) {
+        if(id.length() != length) {
+            return false;
+        }
+        boolean nonZero = false;
+        for(int i = 0; i < length; i++) {
+            char c = id.charAt(i);
+            if((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+            nonZero |= c != '0';
+        }
+        return nonZero;
+    }
+
+    public static String newTraceId() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return toHex(random.nextLong()) + toHex(nonZero(random));
+    }
+
+    public static String newSpanId() {
+        return toHex(nonZero(ThreadLocalRandom.current()));
+    }
+
+    private static long nonZero(ThreadLocalRandom random) {
+        long value;
+        do {
+            value = random.nextLong();
+        } while (value == 0);
+        return value;
+    }
+
+    private static String toHex(long value) {
+        String hex = Long.toHexString(value);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+}
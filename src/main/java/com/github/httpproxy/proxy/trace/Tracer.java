@@ -0,0 +1,124 @@
+package com.github.httpproxy.proxy.trace;
+
+import org.apache.http.HttpRequest;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * 从客户端请求中提取链路上下文并创建代理span，向后端请求注入传播头，
+ * 对采样的span交给{@link BatchSpanProcessor}导出
+ */
+public class Tracer implements Closeable {
+
+    private final BatchSpanProcessor processor;
+    /**
+     * 没有上游采样决定时的采样率，按traceId计算，同一条链路在各节点上结果一致
+     */
+    private final long sampleThreshold;
+
+    public Tracer(BatchSpanProcessor processor, double sampleRate) {
+        this.processor = processor;
+        if(sampleRate >= 1.0) {
+            this.sampleThreshold = Long.MAX_VALUE;
+        } else if(sampleRate <= 0) {
+            this.sampleThreshold = 0;
+        } else {
+            this.sampleThreshold = (long) (sampleRate * Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * 为一次代理请求创建span，客户端没有携带链路上下文时开启新的链路
+     */
+    public Span startProxySpan(HttpServletRequest servletRequest) {
+        TraceContext parent = extract(servletRequest);
+        String traceId = parent != null ? parent.getTraceId() : TraceContext.newTraceId();
+        String parentSpanId = parent != null ? parent.getSpanId() : null;
+        Boolean sampled = parent != null ? parent.getSampled() : null;
+        if(sampled == null) {
+            sampled = shouldSample(traceId);
+        }
+        Span span = new Span(traceId, TraceContext.newSpanId(), parentSpanId, "proxy", sampled);
+        // 按客户端使用的B3格式传给后端，客户端同时带traceparent时也保留
+        if(servletRequest.getHeader(TraceContext.B3) != null) {
+            span.setAttribute("propagation", "b3");
+        } else if(servletRequest.getHeader(TraceContext.B3_TRACE_ID) != null
+                || servletRequest.getHeader(TraceContext.B3_SAMPLED) != null
+                || servletRequest.getHeader(TraceContext.B3_FLAGS) != null) {
+            span.setAttribute("propagation", "b3multi");
+        }
+        return span;
+    }
+
+    protected TraceContext extract(HttpServletRequest servletRequest) {
+        TraceContext context = TraceContext.parseTraceparent(servletRequest.getHeader(TraceContext.TRACEPARENT));
+        if(context == null) {
+            context = TraceContext.parseB3(servletRequest.getHeader(TraceContext.B3));
+        }
+        if(context == null) {
+            context = TraceContext.parseB3Multi(servletRequest.getHeader(TraceContext.B3_TRACE_ID),
+                    servletRequest.getHeader(TraceContext.B3_SPAN_ID),
+                    servletRequest.getHeader(TraceContext.B3_SAMPLED),
+                    servletRequest.getHeader(TraceContext.B3_FLAGS));
+        }
+        return context;
+    }
+
+    private boolean shouldSample(String traceId) {
+        if(sampleThreshold == Long.MAX_VALUE) {
+            return true;
+        }
+        if(sampleThreshold == 0) {
+            return false;
+        }
+        // traceId低64位是随机的
+        long low = Long.parseUnsignedLong(traceId.substring(16), 16) & Long.MAX_VALUE;
+        return low < sampleThreshold;
+    }
+
+    /**
+     * 用代理span替换后端请求上的传播头。
+     * 总是写W3C traceparent，客户端使用B3时同时写同一种格式的B3头(单头或多头)
+     */
+    public void inject(Span span, HttpRequest proxyRequest) {
+        proxyRequest.removeHeaders(TraceContext.B3);
+        proxyRequest.removeHeaders(TraceContext.B3_TRACE_ID);
+        proxyRequest.removeHeaders(TraceContext.B3_SPAN_ID);
+        proxyRequest.removeHeaders(TraceContext.B3_PARENT_SPAN_ID);
+        proxyRequest.removeHeaders(TraceContext.B3_SAMPLED);
+        proxyRequest.removeHeaders(TraceContext.B3_FLAGS);
+        proxyRequest.setHeader(TraceContext.TRACEPARENT, span.toTraceparent());
+        String propagation = span.getAttributes().get("propagation");
+        if("b3".equals(propagation)) {
+            proxyRequest.setHeader(TraceContext.B3, span.toB3());
+        } else if("b3multi".equals(propagation)) {
+            proxyRequest.setHeader(TraceContext.B3_TRACE_ID, span.getTraceId());
+            proxyRequest.setHeader(TraceContext.B3_SPAN_ID, span.getSpanId());
+            if(span.getParentSpanId() != null) {
+                proxyRequest.setHeader(TraceContext.B3_PARENT_SPAN_ID, span.getParentSpanId());
+            }
+            proxyRequest.setHeader(TraceContext.B3_SAMPLED, span.isSampled() ? "1" : "0");
+        }
+    }
+
+    /**
+     * 结束span，只有采样的span会被导出
+     */
+    public void finish(Span span) {
+        span.end();
+        if(span.isSampled()) {
+            processor.onEnd(span);
+        }
+    }
+
+    public BatchSpanProcessor getProcessor() {
+        return processor;
+    }
+
+    @Override
+    public void close() throws IOException {
+        processor.close();
+    }
+}
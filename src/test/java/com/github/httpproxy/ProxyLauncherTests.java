@@ -0,0 +1,58 @@
+package com.github.httpproxy;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.catalina.startup.Tomcat;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProxyLauncherTests {
+
+    @Test
+    void proxiesRequestWithoutSpring() throws Exception {
+        HttpServer backend = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        backend.createContext("/", exchange -> {
+            byte[] body = ("hello " + exchange.getRequestURI()).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        backend.start();
+
+        Properties config = new Properties();
+        config.setProperty("server.port", "0");
+        config.setProperty("proxy.targetUri", "http://127.0.0.1:" + backend.getAddress().getPort() + "/app");
+        Tomcat tomcat = ProxyLauncher.start(config);
+        try {
+            int port = tomcat.getConnector().getLocalPort();
+            HttpURLConnection connection =
+                    (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/a?b=1").openConnection();
+            assertEquals(200, connection.getResponseCode());
+            assertTrue(connection.getContentType().startsWith("text/plain"));
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = connection.getInputStream()) {
+                byte[] buffer = new byte[1024];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    body.write(buffer, 0, n);
+                }
+            }
+            assertEquals("hello /app/a?b=1", new String(body.toByteArray(), StandardCharsets.UTF_8));
+        } finally {
+            tomcat.stop();
+            tomcat.destroy();
+            backend.stop(0);
+        }
+    }
+}
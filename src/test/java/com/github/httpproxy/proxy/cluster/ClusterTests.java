@@ -0,0 +1,355 @@
+package com.github.httpproxy.proxy.cluster;
+
+import com.github.httpproxy.proxy.range.ObjectMetadata;
+import com.github.httpproxy.proxy.range.RangeObjectStore;
+import com.github.httpproxy.proxy.range.RangeResponse;
+import com.github.httpproxy.proxy.range.SegmentCache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class ClusterTests {
+
+    private static final int NODES = 3;
+
+    @TempDir
+    Path dir;
+
+    private final List<Closeable> resources = new ArrayList<>();
+
+    @AfterEach
+    void close() throws IOException {
+        Collections.reverse(resources);
+        for(Closeable resource : resources) {
+            resource.close();
+        }
+    }
+
+    /**
+     * 在localhost上启动几个节点，端口由系统分配
+     */
+    private List<ClusterNode> startNodes() throws IOException {
+        List<TcpClusterTransport> transports = new ArrayList<>();
+        List<String> members = new ArrayList<>();
+        for(int i = 0; i < NODES; i++) {
+            TcpClusterTransport transport = new TcpClusterTransport("127.0.0.1:0", 2000);
+            resources.add(transport);
+            transports.add(transport);
+            members.add(transport.getLocalAddress());
+        }
+        List<ClusterNode> nodes = new ArrayList<>();
+        for(TcpClusterTransport transport : transports) {
+            nodes.add(new ClusterNode(transport, members));
+        }
+        return nodes;
+    }
+
+    private static void await(String what, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if(System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for " + what);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void membersAgreeOnOwners() throws IOException {
+        List<ClusterNode> nodes = startNodes();
+        Map<String, Integer> owned = new HashMap<>();
+        for(int i = 0; i < 3000; i++) {
+            String key = "http://backend/object/" + i;
+            String owner = nodes.get(0).ownerOf(key);
+            for(ClusterNode node : nodes) {
+                assertEquals(owner, node.ownerOf(key));
+            }
+            owned.merge(owner, 1, Integer::sum);
+        }
+        assertEquals(NODES, owned.size());
+        for(int count : owned.values()) {
+            assertTrue(count > 3000 / NODES / 2, "unbalanced: " + owned);
+        }
+    }
+
+    @Test
+    void aggregatesCountersByGossip() throws Exception {
+        List<ClusterNode> nodes = startNodes();
+        List<ClusterRateLimiter> limiters = new ArrayList<>();
+        for(ClusterNode node : nodes) {
+            // 窗口足够长，测试期间不会切换
+            ClusterRateLimiter limiter = new ClusterRateLimiter(node, 30, 24 * 3600 * 1000L, 20, 1);
+            resources.add(limiter);
+            limiters.add(limiter);
+            node.start();
+        }
+        for(ClusterRateLimiter limiter : limiters) {
+            for(int i = 0; i < 10; i++) {
+                assertTrue(limiter.tryAcquire("10.0.0.1"));
+            }
+        }
+        for(final ClusterRateLimiter limiter : limiters) {
+            await("gossip", () -> limiter.estimate("10.0.0.1") == 30);
+            assertFalse(limiter.tryAcquire("10.0.0.1"));
+            assertTrue(limiter.tryAcquire("10.0.0.2"));
+        }
+    }
+
+    @Test
+    void gossipsOnlyChangedKeys() throws Exception {
+        List<TcpClusterTransport> transports = new ArrayList<>();
+        List<String> members = new ArrayList<>();
+        for(int i = 0; i < NODES; i++) {
+            TcpClusterTransport transport = new TcpClusterTransport("127.0.0.1:0", 2000);
+            resources.add(transport);
+            transports.add(transport);
+            members.add(transport.getLocalAddress());
+        }
+        final List<Integer> frameKeys = Collections.synchronizedList(new ArrayList<Integer>());
+        List<ClusterRateLimiter> limiters = new ArrayList<>();
+        for(TcpClusterTransport transport : transports) {
+            ClusterNode node = new ClusterNode(transport, members) {
+                @Override
+                public byte[] request(String member, byte type, byte[] payload) throws IOException {
+                    if(type == ClusterRateLimiter.GOSSIP) {
+                        // 窗口id之后是key数
+                        frameKeys.add(ByteBuffer.wrap(payload, 8, 4).getInt());
+                    }
+                    return super.request(member, type, payload);
+                }
+            };
+            ClusterRateLimiter limiter = new ClusterRateLimiter(node, 1000, 24 * 3600 * 1000L, 20, 2);
+            resources.add(limiter);
+            limiters.add(limiter);
+            node.start();
+        }
+        int keys = ClusterRateLimiter.MAX_KEYS_PER_FRAME + 500;
+        for(int i = 0; i < keys; i++) {
+            assertTrue(limiters.get(0).tryAcquire("key" + i));
+        }
+        for(final ClusterRateLimiter limiter : limiters) {
+            await("gossip", () -> limiter.estimate("key0") == 1 && limiter.estimate("key" + (keys - 1)) == 1);
+        }
+        // 所有成员都已同步后不再发送
+        Thread.sleep(100);
+        int frames = frameKeys.size();
+        Thread.sleep(200);
+        assertEquals(frames, frameKeys.size());
+        for(int count : frameKeys) {
+            assertTrue(count <= ClusterRateLimiter.MAX_KEYS_PER_FRAME, "frame with " + count + " keys");
+        }
+
+        assertTrue(limiters.get(1).tryAcquire("key7"));
+        for(final ClusterRateLimiter limiter : limiters) {
+            await("gossip", () -> limiter.estimate("key7") == 2);
+        }
+        Thread.sleep(100);
+        List<Integer> sent = new ArrayList<>(frameKeys.subList(frames, frameKeys.size()));
+        assertFalse(sent.isEmpty());
+        for(int count : sent) {
+            assertEquals(1, count);
+        }
+    }
+
+    @Test
+    void onlyOwnerFetchesFromOrigin() throws Exception {
+        final byte[] object = new byte[5000];
+        for(int i = 0; i < object.length; i++) {
+            object[i] = (byte) (i * 7);
+        }
+        final AtomicInteger originFetches = new AtomicInteger();
+        final Map<String, AtomicInteger> fetchesByNode = new HashMap<>();
+
+        List<ClusterNode> nodes = startNodes();
+        List<PeerRangeStore> stores = new ArrayList<>();
+        for(int i = 0; i < NODES; i++) {
+            ClusterNode node = nodes.get(i);
+            final AtomicInteger nodeFetches = new AtomicInteger();
+            fetchesByNode.put(node.getLocalMember(), nodeFetches);
+            SegmentCache cache = new SegmentCache(dir.resolve("segments" + i).toFile(), 1024, 8 * 1024);
+            RangeObjectStore local = new RangeObjectStore(cache, 10, 60000);
+            resources.add(local);
+            stores.add(new PeerRangeStore(node, local, 1024, (key, headers) -> (start, end, expected) -> {
+                originFetches.incrementAndGet();
+                nodeFetches.incrementAndGet();
+                long last = Math.min(end, object.length - 1);
+                ObjectMetadata meta = new ObjectMetadata(object.length, "\"v1\"", null, null,
+                        Arrays.asList("Content-Disposition", "attachment; filename=big.bin"));
+                return new RangeResponse(meta,
+                        new ByteArrayInputStream(object, (int) start, (int) (last - start + 1)), () -> { });
+            }));
+            node.start();
+        }
+
+        String key = "http://backend/big";
+        String owner = nodes.get(0).ownerOf(key);
+        for(int i = 0; i < NODES; i++) {
+            PeerRangeStore store = stores.get(i);
+            if(store.remoteOwner(key) == null) {
+                assertEquals(owner, nodes.get(i).getLocalMember());
+                continue;
+            }
+            assertEquals(owner, store.remoteOwner(key));
+            ObjectMetadata meta = store.getMetadata(owner, key, Collections.<String>emptyList());
+            assertEquals(object.length, meta.getLength());
+            assertEquals(Arrays.asList("Content-Disposition", "attachment; filename=big.bin"), meta.getHeaders());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            store.copyRange(owner, key, meta, 1000, 4199, Collections.<String>emptyList(), out);
+            byte[] bytes = out.toByteArray();
+            assertEquals(3200, bytes.length);
+            for(int j = 0; j < bytes.length; j++) {
+                assertEquals(object[1000 + j], bytes[j]);
+            }
+        }
+        // 分段0到4各获取一次，都由负责的成员获取
+        assertEquals(5, originFetches.get());
+        assertEquals(5, fetchesByNode.get(owner).get());
+    }
+
+    @Test
+    void rejectsConnectionsFromNonMembers() throws Exception {
+        List<ClusterNode> nodes = startNodes();
+        ClusterRateLimiter limiter = new ClusterRateLimiter(nodes.get(0), 10, 24 * 3600 * 1000L, 1000, 1);
+        resources.add(limiter);
+        nodes.get(0).start();
+
+        // 成员都在127.0.0.1上，从127.0.0.2连接的不是成员
+        Socket socket = new Socket();
+        try {
+            socket.bind(new InetSocketAddress("127.0.0.2", 0));
+        } catch (IOException e) {
+            socket.close();
+            assumeTrue(false, "127.0.0.2 is not available");
+        }
+        try {
+            socket.connect(TcpClusterTransport.parseAddress(nodes.get(0).getLocalMember()), 2000);
+            socket.setSoTimeout(2000);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream gossip = new DataOutputStream(bytes);
+            gossip.writeByte(ClusterRateLimiter.GOSSIP);
+            gossip.writeLong(System.currentTimeMillis() / (24 * 3600 * 1000L));
+            gossip.writeInt(1);
+            gossip.writeUTF("10.0.0.1");
+            gossip.writeInt(1);
+            gossip.writeUTF(nodes.get(1).getLocalMember());
+            gossip.writeLong(1000000);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(bytes.size());
+            out.write(bytes.toByteArray());
+            out.flush();
+            assertEquals(-1, socket.getInputStream().read());
+        } catch (IOException e) {
+            // 连接被关闭
+        } finally {
+            socket.close();
+        }
+        assertEquals(0, limiter.estimate("10.0.0.1"));
+        assertTrue(limiter.tryAcquire("10.0.0.1"));
+    }
+
+    @Test
+    void skipsUnavailableOwner() throws Exception {
+        TcpClusterTransport live = new TcpClusterTransport("127.0.0.1:0", 2000);
+        resources.add(live);
+        TcpClusterTransport dead = new TcpClusterTransport("127.0.0.1:0", 2000);
+        String deadMember = dead.getLocalAddress();
+        dead.close();
+
+        ClusterNode node = new ClusterNode(live, Arrays.asList(live.getLocalAddress(), deadMember), 60000);
+        SegmentCache cache = new SegmentCache(dir.resolve("segments").toFile(), 1024, 4 * 1024);
+        RangeObjectStore local = new RangeObjectStore(cache, 10, 60000);
+        resources.add(local);
+        PeerRangeStore store = new PeerRangeStore(node, local, 1024, (key, headers) -> null);
+        node.start();
+
+        String key = null;
+        for(int i = 0; key == null; i++) {
+            if(deadMember.equals(node.ownerOf("http://backend/" + i))) {
+                key = "http://backend/" + i;
+            }
+        }
+        assertEquals(deadMember, store.remoteOwner(key));
+        final String deadKey = key;
+        assertThrows(IOException.class,
+                () -> store.getMetadata(deadMember, deadKey, Collections.<String>emptyList()));
+        // 失败后在重试间隔内由本节点处理，不再等待超时
+        assertNull(store.remoteOwner(key));
+        assertFalse(node.isAvailable(deadMember));
+    }
+
+    @Test
+    void doesNotRetryAfterTimeout() throws Exception {
+        final AtomicInteger handled = new AtomicInteger();
+        final AtomicBoolean slow = new AtomicBoolean();
+        final CountDownLatch concurrent = new CountDownLatch(8);
+        TcpClusterTransport owner = new TcpClusterTransport("127.0.0.1:0", 2000);
+        resources.add(owner);
+        owner.start(Collections.singletonList("127.0.0.1:0"), message -> {
+            if(slow.get()) {
+                handled.incrementAndGet();
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else {
+                concurrent.countDown();
+                try {
+                    concurrent.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return message;
+        });
+        final TcpClusterTransport client = new TcpClusterTransport("127.0.0.1:0", 300);
+        resources.add(client);
+
+        // 同时发出8个请求，留下8个空闲连接
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<byte[]>> warmup = new ArrayList<>();
+        for(int i = 0; i < 8; i++) {
+            warmup.add(executor.submit(() -> client.request(owner.getLocalAddress(), new byte[]{1})));
+        }
+        for(Future<byte[]> future : warmup) {
+            assertArrayEquals(new byte[]{1}, future.get(5, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+
+        slow.set(true);
+        long start = System.nanoTime();
+        assertThrows(SocketTimeoutException.class, () -> client.request(owner.getLocalAddress(), new byte[]{2}));
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue(elapsedMillis < 900, "took " + elapsedMillis + " ms");
+        Thread.sleep(200);
+        assertEquals(1, handled.get());
+    }
+}
@@ -0,0 +1,136 @@
+package com.github.httpproxy.proxy.dns;
+
+import org.apache.http.conn.DnsResolver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CachingDnsResolverTests {
+
+    /**
+     * 第n次解析返回10.0.n.1、10.0.n.2、10.0.n.3，可以设置为失败
+     */
+    private static class FakeResolver implements DnsResolver {
+
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicBoolean failing = new AtomicBoolean();
+
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            int call = calls.incrementAndGet();
+            if(failing.get()) {
+                throw new UnknownHostException(host);
+            }
+            InetAddress[] addresses = new InetAddress[3];
+            for(int i = 0; i < addresses.length; i++) {
+                addresses[i] = InetAddress.getByAddress(host, new byte[]{10, 0, (byte) call, (byte) (i + 1)});
+            }
+            return addresses;
+        }
+    }
+
+    private final FakeResolver delegate = new FakeResolver();
+    private final AtomicLong now = new AtomicLong(1000000);
+    private final CachingDnsResolver resolver = new CachingDnsResolver(delegate, 1000, 500, now::get);
+
+    @AfterEach
+    void close() {
+        resolver.close();
+    }
+
+    private static int generation(InetAddress[] addresses) {
+        return addresses[0].getAddress()[2];
+    }
+
+    private static void await(IntSupplier value, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (value.getAsInt() != expected) {
+            if(System.currentTimeMillis() > deadline) {
+                fail("Expected " + expected + " but was " + value.getAsInt());
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    void refreshesInBackgroundAtEightyPercentOfTtl() throws Exception {
+        assertEquals(1, generation(resolver.resolve("backend")));
+        now.addAndGet(799);
+        assertEquals(1, generation(resolver.resolve("backend")));
+        assertEquals(1, delegate.calls.get());
+
+        now.addAndGet(1);
+        // 刷新在后台进行，这次仍然返回缓存的地址
+        assertEquals(1, generation(resolver.resolve("backend")));
+        await(delegate.calls::get, 2);
+        await(() -> {
+            try {
+                return generation(resolver.resolve("backend"));
+            } catch (UnknownHostException e) {
+                throw new AssertionError(e);
+            }
+        }, 2);
+        assertEquals(2, delegate.calls.get());
+    }
+
+    @Test
+    void servesStaleAddressesWhileRefreshFails() throws Exception {
+        assertEquals(1, generation(resolver.resolve("backend")));
+        delegate.failing.set(true);
+
+        now.addAndGet(900);
+        assertEquals(1, generation(resolver.resolve("backend")));
+        await(delegate.calls::get, 2);
+
+        // 刷新失败后标记被重置，下一次解析会再次尝试
+        long deadline = System.currentTimeMillis() + 5000;
+        while (delegate.calls.get() < 3 && System.currentTimeMillis() < deadline) {
+            now.addAndGet(1);
+            assertEquals(1, generation(resolver.resolve("backend")));
+            Thread.sleep(5);
+        }
+        assertTrue(delegate.calls.get() >= 3);
+
+        // TTL已过，但在maxStale之内
+        now.set(1000000 + 1499);
+        assertEquals(1, generation(resolver.resolve("backend")));
+
+        // 超过maxStale后同步解析，失败直接抛出
+        now.set(1000000 + 1500);
+        assertThrows(UnknownHostException.class, () -> resolver.resolve("backend"));
+
+        delegate.failing.set(false);
+        assertTrue(generation(resolver.resolve("backend")) > 1);
+    }
+
+    @Test
+    void rotatesAddresses() throws Exception {
+        Set<InetAddress> first = new HashSet<>();
+        for(int i = 0; i < 3; i++) {
+            InetAddress[] addresses = resolver.resolve("backend");
+            assertEquals(3, addresses.length);
+            assertEquals(3, new HashSet<>(Arrays.asList(addresses)).size());
+            first.add(addresses[0]);
+        }
+        assertEquals(3, first.size());
+        assertEquals(1, delegate.calls.get());
+    }
+
+    @Test
+    void invalidateResolvesAgain() throws Exception {
+        assertEquals(1, generation(resolver.resolve("backend")));
+        resolver.invalidate("backend");
+        assertEquals(2, generation(resolver.resolve("backend")));
+    }
+}
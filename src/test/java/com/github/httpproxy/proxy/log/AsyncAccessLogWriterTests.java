@@ -0,0 +1,117 @@
+package com.github.httpproxy.proxy.log;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsyncAccessLogWriterTests {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void writesJsonLines() throws Exception {
+        File file = dir.resolve("access.log").toFile();
+        AsyncAccessLogWriter writer = new AsyncAccessLogWriter(new RollingFileOutput(file, 0, 0), 16, 4, 10);
+        for(int i = 0; i < 10; i++) {
+            AccessLogRecord record = new AccessLogRecord();
+            record.setMethod("GET");
+            record.setRequestUri("/a\"" + i);
+            record.setStatus(200);
+            record.addBytesSent(i);
+            record.markComplete();
+            assertTrue(writer.append(record));
+        }
+        writer.close();
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(10, lines.size());
+        assertTrue(lines.get(3).contains("\"uri\":\"/a\\\"3\""));
+        assertTrue(lines.get(3).contains("\"bytes\":3"));
+        assertEquals(10, writer.getWrittenCount());
+        assertEquals(0, writer.getDroppedCount());
+    }
+
+    @Test
+    void countsWriteFailuresSeparatelyAndBacksOff() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        RollingFileOutput output = new RollingFileOutput(dir.resolve("access.log").toFile(), 0, 0) {
+            @Override
+            public void write(byte[] bytes, int off, int len) throws IOException {
+                attempts.incrementAndGet();
+                throw new IOException("disk full");
+            }
+        };
+        AsyncAccessLogWriter writer = new AsyncAccessLogWriter(output, 16, 4, 10);
+        for(int i = 0; i < 5; i++) {
+            assertTrue(writer.append(new AccessLogRecord()));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (attempts.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+        // 第一次失败后暂停写出，而不是逐条重试
+        assertEquals(1, attempts.get());
+        writer.close();
+
+        assertEquals(5, writer.getFailedCount());
+        assertEquals(0, writer.getDroppedCount());
+        assertEquals(0, writer.getWrittenCount());
+    }
+
+    @Test
+    void rollsBySize() throws Exception {
+        File file = dir.resolve("access.log").toFile();
+        RollingFileOutput output = new RollingFileOutput(file, 10, 0);
+        byte[] bytes = "0123456789\n".getBytes(StandardCharsets.UTF_8);
+        output.write(bytes, 0, bytes.length);
+        output.write(bytes, 0, bytes.length);
+        output.close();
+
+        File[] files = dir.toFile().listFiles();
+        assertNotNull(files);
+        assertEquals(2, files.length);
+    }
+
+    @Test
+    void keepsWritingWhenRollFails() throws Exception {
+        File file = dir.resolve("access.log").toFile();
+        RollingFileOutput output = new RollingFileOutput(file, 10, 0) {
+            @Override
+            protected boolean rename(File from, File to) {
+                return false;
+            }
+        };
+        byte[] bytes = "0123456789\n".getBytes(StandardCharsets.UTF_8);
+        output.write(bytes, 0, bytes.length);
+        assertThrows(IOException.class, output::roll);
+        output.write(bytes, 0, bytes.length);
+        output.write(bytes, 0, bytes.length);
+        output.close();
+
+        assertEquals(1, dir.toFile().listFiles().length);
+        assertEquals(3, Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size());
+    }
+
+    @Test
+    void ringBufferRejectsWhenFull() {
+        MpscRingBuffer<Integer> buffer = new MpscRingBuffer<>(4);
+        for(int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(i));
+        }
+        assertFalse(buffer.offer(4));
+        assertEquals(0, buffer.poll());
+        assertTrue(buffer.offer(4));
+        assertEquals(1, buffer.poll());
+    }
+}
@@ -0,0 +1,243 @@
+package com.github.httpproxy.proxy.mirror;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TrafficMirrorTests {
+
+    /**
+     * 记录影子请求的HttpClient，读取请求体前等待gate
+     */
+    private static class RecordingClient extends CloseableHttpClient {
+
+        final CountDownLatch gate = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        final BlockingQueue<Object[]> requests = new LinkedBlockingQueue<>();
+
+        @Override
+        protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context)
+                throws IOException {
+            try {
+                gate.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            byte[] body = null;
+            try {
+                if(request instanceof HttpEntityEnclosingRequest) {
+                    body = EntityUtils.toByteArray(((HttpEntityEnclosingRequest) request).getEntity());
+                }
+            } finally {
+                requests.add(new Object[]{request.getRequestLine().getUri(), body});
+            }
+            return new Response(closed);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public HttpParams getParams() {
+            return new BasicHttpParams();
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public ClientConnectionManager getConnectionManager() {
+            return null;
+        }
+    }
+
+    private static class Response extends BasicHttpResponse implements CloseableHttpResponse {
+
+        private final CountDownLatch closed;
+
+        Response(CountDownLatch closed) {
+            super(HttpVersion.HTTP_1_1, 204, "No Content");
+            this.closed = closed;
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        for(int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31);
+        }
+        return bytes;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[3];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    void pipeWrapsAround() throws IOException {
+        BodyPipe pipe = new BodyPipe(8, 1000);
+        InputStream in = pipe.getInputStream();
+        byte[] data = bytes(11);
+        assertTrue(pipe.write(data, 0, 5));
+        byte[] read = new byte[5];
+        assertEquals(5, in.read(read, 0, 5));
+        // 写入位置跨过缓冲区末尾
+        assertTrue(pipe.write(data, 5, 6));
+        pipe.close();
+        byte[] rest = readAll(in);
+        assertArrayEquals(Arrays.copyOfRange(data, 0, 5), read);
+        assertArrayEquals(Arrays.copyOfRange(data, 5, 11), rest);
+    }
+
+    @Test
+    void abortsWhenWriterOverruns() throws IOException {
+        BodyPipe pipe = new BodyPipe(4, 1000);
+        assertTrue(pipe.write(bytes(3), 0, 3));
+        assertFalse(pipe.write(bytes(2), 0, 2));
+        assertTrue(pipe.isAborted());
+        assertFalse(pipe.write(bytes(1), 0, 1));
+        // 已经写入的数据仍然可以读到，之后才失败
+        InputStream in = pipe.getInputStream();
+        byte[] read = new byte[4];
+        assertEquals(3, in.read(read, 0, 4));
+        assertThrows(IOException.class, () -> in.read(read, 0, 4));
+    }
+
+    @Test
+    void readerTimesOutWithoutData() {
+        BodyPipe pipe = new BodyPipe(4, 50);
+        InputStream in = pipe.getInputStream();
+        assertThrows(InterruptedIOException.class, () -> in.read(new byte[1], 0, 1));
+        assertTrue(pipe.isAborted());
+    }
+
+    @Test
+    void teeClosesPipeAtContentLength() throws IOException {
+        BodyPipe pipe = new BodyPipe(64, 1000);
+        byte[] body = bytes(20);
+        // 后面还有数据，按Content-Length读取时不会读到-1
+        byte[] stream = Arrays.copyOf(body, 30);
+        InputStream tee = new TeeInputStream(new ByteArrayInputStream(stream), pipe, body.length);
+        new InputStreamEntity(tee, body.length).writeTo(new ByteArrayOutputStream());
+        assertTrue(pipe.isClosed());
+        assertArrayEquals(body, readAll(pipe.getInputStream()));
+    }
+
+    @Test
+    void shadowFinishesContentLengthBodyAfterPrimary() throws Exception {
+        RecordingClient client = new RecordingClient();
+        TrafficMirror mirror = new TrafficMirror("http://shadow:9000/app", new HttpHost("shadow", 9000), client,
+                1.0, 2, 1024, 1000);
+        byte[] body = bytes(500);
+        MirrorRequest request = mirror.sample(true, body.length);
+        assertNotNull(request);
+
+        BasicHttpEntityEnclosingRequest proxyRequest =
+                new BasicHttpEntityEnclosingRequest("POST", "http://primary/app/orders?id=1");
+        proxyRequest.addHeader("Host", "primary");
+        proxyRequest.addHeader("Content-Type", "application/json");
+        mirror.submit(request, proxyRequest, "http://primary/app/orders?id=1", "http://primary/app");
+
+        // 主请求读完请求体并结束，影子请求此时还没有开始读
+        InputStream tee = request.tee(new ByteArrayInputStream(body));
+        new InputStreamEntity(tee, body.length).writeTo(new ByteArrayOutputStream());
+        request.primaryComplete();
+        client.gate.countDown();
+
+        Object[] recorded = client.requests.poll(5, TimeUnit.SECONDS);
+        assertNotNull(recorded);
+        assertEquals("http://shadow:9000/app/orders?id=1", recorded[0]);
+        assertArrayEquals(body, (byte[]) recorded[1]);
+        // 影子响应被关闭而不是读完
+        assertTrue(client.closed.await(5, TimeUnit.SECONDS));
+        assertEquals(1, mirror.getMirroredCount());
+        assertEquals(0, mirror.getFailedCount());
+        mirror.close();
+    }
+
+    @Test
+    void shadowFailsWhenPrimaryStopsEarly() throws Exception {
+        RecordingClient client = new RecordingClient();
+        TrafficMirror mirror = new TrafficMirror("http://shadow", new HttpHost("shadow"), client,
+                1.0, 2, 1024, 1000);
+        MirrorRequest request = mirror.sample(true, 100);
+        mirror.submit(request, new BasicHttpEntityEnclosingRequest("PUT", "http://primary/x"),
+                "http://primary/x", "http://primary");
+        InputStream tee = request.tee(new ByteArrayInputStream(bytes(100)));
+        assertEquals(40, tee.read(new byte[40]));
+        request.primaryComplete();
+        client.gate.countDown();
+
+        Object[] recorded = client.requests.poll(5, TimeUnit.SECONDS);
+        assertNotNull(recorded);
+        assertNull(recorded[1]);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mirror.getFailedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, mirror.getFailedCount());
+        mirror.close();
+    }
+
+    @Test
+    void samplesByRateAndConcurrency() throws Exception {
+        RecordingClient client = new RecordingClient();
+        TrafficMirror never = new TrafficMirror("http://shadow", new HttpHost("shadow"), client, 0.0, 1, 16, 100);
+        assertNull(never.sample(false, -1));
+        never.close();
+
+        TrafficMirror mirror = new TrafficMirror("http://shadow", new HttpHost("shadow"), client, 1.0, 1, 16, 100);
+        MirrorRequest request = mirror.sample(false, -1);
+        assertNotNull(request);
+        mirror.submit(request, new BasicHttpRequest("GET", "http://primary/a"), "http://primary/a",
+                "http://primary");
+        // 唯一的线程在等待gate，新的请求不再镜像
+        long deadline = System.currentTimeMillis() + 5000;
+        MirrorRequest second;
+        while ((second = mirror.sample(false, -1)) != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNull(second);
+        assertEquals(1, mirror.getRejectedCount());
+        client.gate.countDown();
+        assertEquals("http://shadow/a", client.requests.poll(5, TimeUnit.SECONDS)[0]);
+        mirror.close();
+    }
+}
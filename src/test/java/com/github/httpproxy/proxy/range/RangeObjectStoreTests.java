@@ -0,0 +1,170 @@
+package com.github.httpproxy.proxy.range;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RangeObjectStoreTests {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void parsesRanges() {
+        assertArrayEquals(new long[]{0, 99}, ByteRange.parse("bytes=0-99").resolve(1000));
+        assertArrayEquals(new long[]{900, 999}, ByteRange.parse("bytes=900-").resolve(1000));
+        assertArrayEquals(new long[]{950, 999}, ByteRange.parse("bytes=-50").resolve(1000));
+        assertArrayEquals(new long[]{990, 999}, ByteRange.parse("bytes=990-2000").resolve(1000));
+        assertNull(ByteRange.parse("bytes=1000-").resolve(1000));
+        assertNull(ByteRange.parse("bytes=0-1,5-6"));
+        assertNull(ByteRange.parse("items=0-1"));
+
+        assertArrayEquals(new long[]{0, 1023, 5000}, ByteRange.parseContentRange("bytes 0-1023/5000"));
+        assertArrayEquals(new long[]{4096, 4999, 5000}, ByteRange.parseContentRange("bytes 4096-4999/5000"));
+        assertNull(ByteRange.parseContentRange("bytes 0-1023/*"));
+        assertNull(ByteRange.parseContentRange("bytes */5000"));
+        assertNull(ByteRange.parseContentRange("bytes 0-5000/5000"));
+        assertNull(ByteRange.parseContentRange("bytes 10-5/5000"));
+    }
+
+    @Test
+    void servesRangesFromCachedSegments() throws Exception {
+        final byte[] object = new byte[10000];
+        for(int i = 0; i < object.length; i++) {
+            object[i] = (byte) i;
+        }
+        final AtomicInteger fetches = new AtomicInteger();
+        SegmentSource source = (start, end, expected) -> {
+            fetches.incrementAndGet();
+            long last = Math.min(end, object.length - 1);
+            ObjectMetadata meta = new ObjectMetadata(object.length, "\"v1\"", null, "application/octet-stream");
+            return new RangeResponse(meta,
+                    new ByteArrayInputStream(object, (int) start, (int) (last - start + 1)), () -> { });
+        };
+
+        SegmentCache cache = new SegmentCache(dir.resolve("segments").toFile(), 1024, 4 * 1024);
+        RangeObjectStore store = new RangeObjectStore(cache, 10, 60000);
+        ObjectMetadata meta = store.getMetadata("/big", source);
+        assertEquals(10000, meta.getLength());
+        assertTrue(meta.matchesIfRange("\"v1\""));
+        assertFalse(meta.matchesIfRange("\"v2\""));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        store.copyRange("/big", meta, 1000, 2999, source, out);
+        byte[] bytes = out.toByteArray();
+        assertEquals(2000, bytes.length);
+        for(int i = 0; i < bytes.length; i++) {
+            assertEquals(object[1000 + i], bytes[i]);
+        }
+        int afterFirst = fetches.get();
+
+        out.reset();
+        store.copyRange("/big", meta, 1500, 2500, source, out);
+        assertEquals(1001, out.size());
+        assertEquals(afterFirst, fetches.get());
+
+        // 最后一个分段小于分段大小
+        out.reset();
+        store.copyRange("/big", meta, 9990, 9999, source, out);
+        assertEquals(10, out.size());
+        assertEquals(object[9999], out.toByteArray()[9]);
+        store.close();
+    }
+
+    @Test
+    void honoursUpstreamMaxAge() throws Exception {
+        final AtomicInteger fetches = new AtomicInteger();
+        final AtomicInteger maxAge = new AtomicInteger(0);
+        SegmentSource source = (start, end, expected) -> {
+            fetches.incrementAndGet();
+            ObjectMetadata meta = new ObjectMetadata(100, "\"v1\"", null, null,
+                    Collections.<String>emptyList(), maxAge.get(), true);
+            return new RangeResponse(meta, new ByteArrayInputStream(new byte[100]), () -> { });
+        };
+
+        SegmentCache cache = new SegmentCache(dir.resolve("segments").toFile(), 1024, 4 * 1024);
+        RangeObjectStore store = new RangeObjectStore(cache, 10, 60000);
+        // 后端的有效期短于配置的有效期时以后端为准
+        store.getMetadata("/short", source);
+        assertNull(store.getCachedMetadata("/short"));
+        store.getMetadata("/short", source);
+        assertEquals(2, fetches.get());
+
+        maxAge.set(3600 * 1000);
+        ObjectMetadata meta = store.getMetadata("/long", source);
+        assertSame(meta, store.getCachedMetadata("/long"));
+        assertSame(meta, store.getMetadata("/long", source));
+        assertEquals(3, fetches.get());
+        assertTrue(meta.isShared());
+        store.close();
+    }
+
+    @Test
+    void failsInsteadOfMixingVersions() throws Exception {
+        final byte[][] versions = {new byte[4096], new byte[4096]};
+        Arrays.fill(versions[0], (byte) 1);
+        Arrays.fill(versions[1], (byte) 2);
+        final AtomicInteger current = new AtomicInteger(0);
+        // 模拟后端的If-Range：版本不匹配时返回完整内容，相当于null
+        SegmentSource source = (start, end, expected) -> {
+            int version = current.get();
+            ObjectMetadata meta = new ObjectMetadata(4096, "\"v" + (version + 1) + "\"", null, null);
+            if(expected != null && !expected.sameVersion(meta)) {
+                return null;
+            }
+            return new RangeResponse(meta,
+                    new ByteArrayInputStream(versions[version], (int) start, (int) (end - start + 1)), () -> { });
+        };
+
+        SegmentCache cache = new SegmentCache(dir.resolve("segments").toFile(), 1024, 8 * 1024);
+        // 元数据立即过期，每次getMetadata都会重新获取
+        final RangeObjectStore store = new RangeObjectStore(cache, 10, 0);
+        ObjectMetadata v1 = store.getMetadata("/obj", source);
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        store.copyRange("/obj", v1, 0, 2047, source, first);
+
+        // 第一个分段写出后对象变成v2，另一个请求刷新了元数据并缓存了v2的第二个分段
+        final SegmentSource sameSource = source;
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                super.write(b, off, len);
+                if(size() == 1024 && current.compareAndSet(0, 1)) {
+                    try {
+                        ObjectMetadata v2 = store.getMetadata("/obj", sameSource);
+                        assertEquals("\"v2\"", v2.getEtag());
+                        store.copyRange("/obj", v2, 1024, 2047, sameSource, new ByteArrayOutputStream());
+                    } catch (IOException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            }
+        };
+        assertThrows(IOException.class, () -> store.copyRange("/obj", v1, 0, 4095, sameSource, out));
+        for(byte b : out.toByteArray()) {
+            assertEquals(1, b);
+        }
+
+        // 持有v1元数据的请求不会拿到v2的分段
+        ObjectMetadata v2 = store.getMetadata("/obj", source);
+        out.reset();
+        assertThrows(IOException.class, () -> store.copyRange("/obj", v1, 0, 1023, sameSource, out));
+        assertEquals(0, out.size());
+
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        store.copyRange("/obj", v2, 0, 4095, source, second);
+        for(byte b : second.toByteArray()) {
+            assertEquals(2, b);
+        }
+        store.close();
+    }
+}
@@ -0,0 +1,54 @@
+package com.github.httpproxy.proxy.rewrite;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RewritingOutputStreamTests {
+
+    private static final String TARGET = "http://backend:8080/app";
+    private static final String PROXY = "http://proxy/p";
+
+    private static RewritingOutputStream rewriter(ByteArrayOutputStream out) {
+        AhoCorasickMatcher matcher = new AhoCorasickMatcher(new byte[][]{
+                TARGET.getBytes(StandardCharsets.UTF_8),
+                TARGET.replace("/", "\\/").getBytes(StandardCharsets.UTF_8)});
+        return new RewritingOutputStream(out, matcher, new byte[][]{
+                PROXY.getBytes(StandardCharsets.UTF_8),
+                PROXY.replace("/", "\\/").getBytes(StandardCharsets.UTF_8)});
+    }
+
+    @Test
+    void rewritesMatchesSplitAcrossWrites() throws IOException {
+        String body = "<a href=\"" + TARGET + "/x\">" + TARGET + "</a>{\"u\":\"" + TARGET.replace("/", "\\/") + "\"}";
+        String expected = body.replace(TARGET.replace("/", "\\/"), PROXY.replace("/", "\\/")).replace(TARGET, PROXY);
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        // 每个字节单独写入，匹配一定跨越多次write
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RewritingOutputStream rewriter = rewriter(out);
+        for(byte b : bytes) {
+            rewriter.write(new byte[]{b}, 0, 1);
+        }
+        rewriter.finish();
+        assertEquals(expected, new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void flushKeepsOnlyPossiblePrefix() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RewritingOutputStream rewriter = rewriter(out);
+        rewriter.write("data: http://back".getBytes(StandardCharsets.UTF_8));
+        rewriter.flush();
+        assertEquals("data: ", new String(out.toByteArray(), StandardCharsets.UTF_8));
+        rewriter.write("end:8080/app/e\n".getBytes(StandardCharsets.UTF_8));
+        rewriter.flush();
+        assertEquals("data: " + PROXY + "/e\n", new String(out.toByteArray(), StandardCharsets.UTF_8));
+        rewriter.write("http://b".getBytes(StandardCharsets.UTF_8));
+        rewriter.finish();
+        assertEquals("data: " + PROXY + "/e\nhttp://b", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+}
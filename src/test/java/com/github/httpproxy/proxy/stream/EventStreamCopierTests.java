@@ -0,0 +1,71 @@
+package com.github.httpproxy.proxy.stream;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventStreamCopierTests {
+
+    /**
+     * 每次read只返回一段，available()总是返回0，模拟后端逐个发送
+     */
+    private static InputStream chunks(String... chunks) {
+        final List<byte[]> list = new ArrayList<>();
+        for(String chunk : chunks) {
+            list.add(chunk.getBytes(StandardCharsets.UTF_8));
+        }
+        return new InputStream() {
+            @Override
+            public int read() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if(list.isEmpty()) {
+                    return -1;
+                }
+                byte[] chunk = list.remove(0);
+                System.arraycopy(chunk, 0, b, off, chunk.length);
+                return chunk.length;
+            }
+        };
+    }
+
+    private static class FlushCountingStream extends ByteArrayOutputStream {
+        final List<String> flushed = new ArrayList<>();
+
+        @Override
+        public void flush() {
+            flushed.add(new String(toByteArray(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void flushesOnlyAtEventBoundaries() throws IOException {
+        FlushCountingStream out = new FlushCountingStream();
+        new EventStreamCopier(StreamingMode.EVENT_STREAM, 1000, false)
+                .copy(chunks("data: a\n", "\n", "data: b\r\n", "\r\n"), out);
+        assertEquals(3, out.flushed.size());
+        assertEquals("data: a\n\n", out.flushed.get(0));
+        assertEquals("data: a\n\ndata: b\r\n\r\n", out.flushed.get(1));
+    }
+
+    @Test
+    void coalescesWhenMoreDataIsAvailable() throws IOException {
+        FlushCountingStream out = new FlushCountingStream();
+        InputStream in = new ByteArrayInputStream("{\"a\":1}\n{\"b\":2}\n".getBytes(StandardCharsets.UTF_8));
+        new EventStreamCopier(StreamingMode.LINE_DELIMITED, 1000000, false).copy(in, out);
+        // 所有数据一次读完，只在available()为0时刷新一次，加上结束时的刷新
+        assertEquals(2, out.flushed.size());
+        assertEquals("{\"a\":1}\n{\"b\":2}\n", out.flushed.get(0));
+    }
+}
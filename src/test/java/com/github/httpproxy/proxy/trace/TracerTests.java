@@ -0,0 +1,92 @@
+package com.github.httpproxy.proxy.trace;
+
+import org.apache.http.message.BasicHttpRequest;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TracerTests {
+
+    @Test
+    void continuesW3cTrace() throws Exception {
+        InMemorySpanExporter exporter = new InMemorySpanExporter();
+        Tracer tracer = new Tracer(new BatchSpanProcessor(exporter, 16, 4, 10), 0.0);
+
+        MockHttpServletRequest servletRequest = new MockHttpServletRequest("GET", "/a");
+        servletRequest.addHeader("traceparent", "00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01");
+        Span span = tracer.startProxySpan(servletRequest);
+        assertEquals("0af7651916cd43dd8448eb211c80319c", span.getTraceId());
+        assertEquals("b7ad6b7169203331", span.getParentSpanId());
+        assertTrue(span.isSampled());
+
+        BasicHttpRequest proxyRequest = new BasicHttpRequest("GET", "/a");
+        proxyRequest.addHeader("traceparent", "00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01");
+        tracer.inject(span, proxyRequest);
+        assertEquals(1, proxyRequest.getHeaders("traceparent").length);
+        assertEquals(span.toTraceparent(), proxyRequest.getFirstHeader("traceparent").getValue());
+
+        span.markExecuteStart();
+        span.markWriteStart();
+        span.markWriteEnd();
+        span.markFirstByte();
+        tracer.finish(span);
+        tracer.close();
+
+        List<Span> spans = exporter.getSpans();
+        assertEquals(1, spans.size());
+        assertEquals(3, spans.get(0).getChildren().size());
+        assertEquals("pool.lease", spans.get(0).getChildren().get(0).getName());
+    }
+
+    @Test
+    void startsNewTraceAndHonoursB3() throws Exception {
+        InMemorySpanExporter exporter = new InMemorySpanExporter();
+        Tracer tracer = new Tracer(new BatchSpanProcessor(exporter, 16, 4, 10), 1.0);
+
+        Span root = tracer.startProxySpan(new MockHttpServletRequest("GET", "/"));
+        assertNull(root.getParentSpanId());
+        assertEquals(32, root.getTraceId().length());
+
+        MockHttpServletRequest servletRequest = new MockHttpServletRequest("GET", "/");
+        servletRequest.addHeader("b3", "80f198ee56343ba8-e457b5a2e4d86bd1-0");
+        Span span = tracer.startProxySpan(servletRequest);
+        assertFalse(span.isSampled());
+        assertEquals("000000000000000080f198ee56343ba8", span.getTraceId());
+
+        BasicHttpRequest proxyRequest = new BasicHttpRequest("GET", "/");
+        tracer.inject(span, proxyRequest);
+        assertNotNull(proxyRequest.getFirstHeader("b3"));
+
+        tracer.finish(root);
+        tracer.finish(span);
+        tracer.close();
+        assertEquals(1, exporter.getSpans().size());
+    }
+
+    @Test
+    void keepsB3MultiHeaderFormat() throws Exception {
+        Tracer tracer = new Tracer(new BatchSpanProcessor(new InMemorySpanExporter(), 16, 4, 10), 1.0);
+
+        MockHttpServletRequest servletRequest = new MockHttpServletRequest("GET", "/");
+        servletRequest.addHeader("X-B3-TraceId", "463ac35c9f6413ad48485a3953bb6124");
+        servletRequest.addHeader("X-B3-SpanId", "a2fb4a1d1a96d312");
+        servletRequest.addHeader("X-B3-Sampled", "1");
+        Span span = tracer.startProxySpan(servletRequest);
+
+        BasicHttpRequest proxyRequest = new BasicHttpRequest("GET", "/");
+        proxyRequest.addHeader("X-B3-TraceId", "463ac35c9f6413ad48485a3953bb6124");
+        proxyRequest.addHeader("X-B3-SpanId", "a2fb4a1d1a96d312");
+        proxyRequest.addHeader("X-B3-Sampled", "1");
+        tracer.inject(span, proxyRequest);
+        assertNull(proxyRequest.getFirstHeader("b3"));
+        assertEquals("463ac35c9f6413ad48485a3953bb6124", proxyRequest.getFirstHeader("X-B3-TraceId").getValue());
+        assertEquals(span.getSpanId(), proxyRequest.getFirstHeader("X-B3-SpanId").getValue());
+        assertEquals("a2fb4a1d1a96d312", proxyRequest.getFirstHeader("X-B3-ParentSpanId").getValue());
+        assertEquals("1", proxyRequest.getFirstHeader("X-B3-Sampled").getValue());
+        assertEquals(span.toTraceparent(), proxyRequest.getFirstHeader("traceparent").getValue());
+        tracer.close();
+    }
+}